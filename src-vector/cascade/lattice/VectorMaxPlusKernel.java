@@ -0,0 +1,79 @@
+package cascade.lattice;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * MaxPlusKernel whose forward pass over dense edge blocks uses the JDK Vector API: the scores of a
+ * state's edges and the alphas of the previous position are both contiguous, so they are added and
+ * reduced to their maximum a few lanes at a time, and the argmax is the first lane equal to it.
+ * Everything else, including the strided backward blocks, is done by MaxPlusKernel.
+ *
+ * The sums are the same IEEE additions as in MaxPlusKernel, and the value stored is the sum of the
+ * first edge reaching the maximum, so the results are identical bit for bit. States with no finite
+ * candidate (all -infinity or NaN) are left to MaxPlusKernel, which fails the same way it always has.
+ *
+ * This class needs Java 16 or later and the jdk.incubator.vector module, at compile time and at run
+ * time (java --add-modules jdk.incubator.vector); it is in its own source folder and is built by the
+ * build-vector target. ViterbiMaxSum loads it by name and falls back to MaxPlusKernel if it cannot.
+ */
+public class VectorMaxPlusKernel extends MaxPlusKernel {
+
+	// fails to initialize, and so to load, when the Vector API is missing
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	protected void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward) {
+
+		final int L = SPECIES.length();
+
+		if (stride != 1 || n < L) {
+			super.combineDense(lattice, idx, first, stride, other, n, forward);
+			return;
+		}
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+		final int bound = SPECIES.loopBound(n);
+
+		DoubleVector best = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int j = 0;
+		for (; j < bound; j += L)
+			best = best.max(sum(edgeScores, first+j, vals, other+j));
+
+		double max = best.reduceLanes(VectorOperators.MAX);
+		for (; j < n; j++)
+			max = Math.max(max, edgeScores[first+j] + vals[other+j]);
+
+		if (Double.isNaN(max) || max == Double.NEGATIVE_INFINITY) {
+			super.combineDense(lattice, idx, first, stride, other, n, forward);
+			return;
+		}
+
+		int argmax = -1;
+		for (j = 0; j < bound; j += L) {
+			VectorMask<Double> hits = sum(edgeScores, first+j, vals, other+j).eq(max);
+			if (hits.anyTrue()) {
+				argmax = j + hits.firstTrue();
+				break;
+			}
+		}
+		if (argmax == -1) {
+			for (j = bound; j < n; j++) {
+				if (edgeScores[first+j] + vals[other+j] == max) {
+					argmax = j;
+					break;
+				}
+			}
+		}
+
+		// the first maximum, as MaxPlusKernel would keep it (e.g. -0.0 rather than 0.0)
+		store(idx, edgeScores[first+argmax] + vals[other+argmax], first+argmax, forward);
+	}
+
+	private static DoubleVector sum(double [] a, int aOff, double [] b, int bOff) {
+		return DoubleVector.fromArray(SPECIES, a, aOff).add(DoubleVector.fromArray(SPECIES, b, bOff));
+	}
+}
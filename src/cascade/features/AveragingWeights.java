@@ -79,6 +79,7 @@ public class AveragingWeights extends Weights implements Serializable {
 			w[i] = (t+1.0)*w[i] - wupdates[i];
 		
 		averaged = true;
+		markChanged();
 	
 	}
 	/**
@@ -93,6 +94,7 @@ public class AveragingWeights extends Weights implements Serializable {
 		
 		scale = 1.0;
 		averaged = false;
+		markChanged();
 	}
 	
 	@Override
@@ -112,6 +114,12 @@ public class AveragingWeights extends Weights implements Serializable {
 		fv.increment(wupdates, offset, t*rate);
 	}
 
+	@Override
+	public void increment(FeatureVector fv, int offset, int stride, double rate) {
+		super.increment(fv, offset, stride, rate);
+		fv.increment(wupdates, offset, stride, t*rate);
+	}
+
 	@Override
 	public void incrementMixed(FeatureVector fv, int offset, double rate) {
 		super.incrementMixed(fv, offset, rate);
@@ -132,6 +140,13 @@ public class AveragingWeights extends Weights implements Serializable {
 	public double scoreMixed(FeatureVector fv, int offset) {
 		return super.scoreMixed(fv, offset)*scale;
 	}
+
+	@Override
+	public void scoreAll(FeatureVector fv, int offset, int stride, double[] scores, int n) {
+		super.scoreAll(fv, offset, stride, scores, n);
+		for (int i = 0; i < n; i++)
+			scores[i] *= scale;
+	}
 	
 	
 
@@ -42,6 +42,21 @@ public abstract class FeatureGenerator implements Serializable {
 	
 	private Alphabet workingAlphabet;
 	
+	/**
+	 * If positive, finalizeFeatureVector returns a shared instance for all identical feature vectors 
+	 * with at most this many features (see FeatureVectorPool), e.g. for n-gram edge features.
+	 */
+	public int internMaxFeatures = 0;
+	
+	/**
+	 * Maximum number of distinct vectors kept for internMaxFeatures. Once the pool is full it is 
+	 * dropped and a new one is started, so it cannot grow without bound over a run; vectors that 
+	 * were already returned stay shared.
+	 */
+	public int internMaxVectors = 100000;
+	
+	private transient FeatureVectorPool internPool;
+	
 	public Alphabet getWorkingAlphabet() {return workingAlphabet;}
 	public void setWorkingAlphabet(Alphabet workingAlphabet) {this.workingAlphabet = workingAlphabet;}
 
@@ -184,6 +199,12 @@ public abstract class FeatureGenerator implements Serializable {
 		valsBuffer.resetQuick();
 		binaryOnly = false;
 		
+		if (internMaxFeatures > 0) {
+			if (internPool == null || internPool.size() >= internMaxVectors)
+				internPool = new FeatureVectorPool(internMaxFeatures);
+			fv = internPool.intern(fv);
+		}
+		
 		return fv;
 	}		
 	
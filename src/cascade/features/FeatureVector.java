@@ -27,6 +27,11 @@ public class FeatureVector{ //implements Serializable {
 	int [] keys;
 	double [] vals;
 	
+	/**
+	 * Whether this vector belongs to a FeatureVectorPool and may be referenced by many lattices.
+	 */
+	boolean shared = false;
+	
 	public FeatureVector(int[] keys, double[] vals) {
 		this.keys = keys;
 		this.vals = vals;
@@ -40,6 +45,8 @@ public class FeatureVector{ //implements Serializable {
 	public int [] getKeys () { return keys; }
 	public double [] getValues() { return vals; }
 	
+	public boolean isShared() { return shared; }
+	
 	public int size() { return keys.length; }
 	public int sizeBinary() { return keys.length - vals.length; }
 	public int sizeDouble() { return vals.length; }
@@ -130,6 +137,43 @@ public class FeatureVector{ //implements Serializable {
 		
 	}
 	
+	/**
+	 * Increment, but map each key k to offset + k*stride.
+	 * @param w
+	 * @param offset
+	 * @param stride
+	 * @param rate
+	 */
+	public void increment(double[] w, int offset, int stride, double rate) {
+		
+		for (int i = 0; i < keys.length; i++) {
+			double v = (vals != null && i < vals.length ? vals[i] : 1.0);
+			w[keys[i]*stride+offset] += v*rate;
+		}
+	}
+	
+	/**
+	 * Scores against n weight vectors interleaved with the given stride, in one pass over the keys:
+	 * sets scores[t] to the score against w[offset + k*stride + t] for each key k, for t < n.
+	 * @param w
+	 * @param offset
+	 * @param stride
+	 * @param scores
+	 * @param n
+	 */
+	public void scoreAll(double w[], int offset, int stride, double scores[], int n) {
+		
+		for (int t = 0; t < n; t++)
+			scores[t] = 0;
+		
+		for (int i = 0; i < keys.length; i++) {
+			double v = (vals != null && i < vals.length ? vals[i] : 1.0);
+			int start = keys[i]*stride+offset;
+			for (int t = 0; t < n; t++)
+				scores[t] += v*w[start+t];
+		}
+	}
+	
 	public double score(double w[]) {
 		
 		double s = 0;
@@ -217,6 +261,77 @@ public class FeatureVector{ //implements Serializable {
 		vals = ArrayUtil.readDoubleArray(in);
 	}
 	
+	/**
+	 * Reads a feature vector in place. The key and value arrays are reused only if they have 
+	 * exactly the right length, since their lengths determine the size of the vector.
+	 */
+	public void read(DataInput in) throws IOException{
+		long id=in.readLong();
+		if (id!= serialVersionUID) throw new IOException("Wrong serial version, got "+id);
+		
+		if (in.readBoolean()) 
+			keys = null;
+		else {
+			int n = in.readInt();
+			if (keys == null || keys.length != n)
+				keys = new int[n];
+			ArrayUtil.readInts(in, keys, n);
+		}
+		
+		if (in.readBoolean())
+			vals = null;
+		else {
+			int n = in.readInt();
+			if (vals == null || vals.length != n)
+				vals = new double[n];
+			ArrayUtil.readDoubles(in, vals, n);
+		}
+	}
+	
+	/**
+	 * Writes the vector without a version header (the enclosing lattice has one), with the 
+	 * keys as variable-length deltas from the previous key, so sorted keys are cheapest.
+	 */
+	public void writeCompact(DataOutput out) throws IOException{
+		ArrayUtil.writeVarInt(out, keys == null ? 0 : keys.length + 1);
+		if (keys != null) {
+			int prev = 0;
+			for (int i = 0; i < keys.length; i++) {
+				ArrayUtil.writeSignedVarInt(out, keys[i] - prev);
+				prev = keys[i];
+			}
+		}
+		
+		ArrayUtil.writeVarInt(out, vals == null ? 0 : vals.length + 1);
+		if (vals != null)
+			ArrayUtil.writeDoubles(out, vals, vals.length);
+	}
+	
+	/**
+	 * Reads a vector written by writeCompact in place (see read).
+	 */
+	public void readCompact(DataInput in) throws IOException{
+		int n = ArrayUtil.readVarInt(in) - 1;
+		if (n < 0)
+			keys = null;
+		else {
+			if (keys == null || keys.length != n)
+				keys = new int[n];
+			int prev = 0;
+			for (int i = 0; i < n; i++) 
+				keys[i] = prev = prev + ArrayUtil.readSignedVarInt(in);
+		}
+		
+		n = ArrayUtil.readVarInt(in) - 1;
+		if (n < 0)
+			vals = null;
+		else {
+			if (vals == null || vals.length != n)
+				vals = new double[n];
+			ArrayUtil.readDoubles(in, vals, n);
+		}
+	}
+	
 //	private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException{
 //		long id=in.readLong();
 //		if (id!= serialVersionUID) throw new IOException("Wrong serial version, got "+id);
@@ -0,0 +1,147 @@
+package cascade.features;
+
+import gnu.trove.TObjectIntHashMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * A set of canonical feature vectors, each with an integer ID.
+ *
+ * Identical feature vectors (e.g. the features of the same n-gram on different edges) can be
+ * replaced by a single shared instance with intern(), and written to a lattice cache as a
+ * reference to their ID (see Lattice.write). Only vectors with at most maxFeatures features
+ * are pooled; large vectors rarely repeat and would only fill the pool.
+ *
+ * Pooled vectors are shared, so they must never be modified (see FeatureVector.isShared).
+ */
+public class FeatureVectorPool {
+
+	/**
+	 * Version of the format written by write().
+	 */
+	private static final long formatVersion = 1L;
+
+	/**
+	 * Vectors with more features than this are never pooled.
+	 */
+	public int maxFeatures;
+
+	// ID + 1 of every pooled vector, so that 0 means "not pooled"
+	private TObjectIntHashMap<FeatureVector> ids = new TObjectIntHashMap<FeatureVector>();
+	private ArrayList<FeatureVector> vectors = new ArrayList<FeatureVector>();
+
+	public FeatureVectorPool(int maxFeatures) {
+		this.maxFeatures = maxFeatures;
+	}
+
+	public int size() {
+		return vectors.size();
+	}
+
+	public FeatureVector get(int id) {
+		return vectors.get(id);
+	}
+
+	/**
+	 * Whether fv is small enough to be pooled.
+	 */
+	public boolean accepts(FeatureVector fv) {
+		return fv.keys != null && fv.keys.length <= maxFeatures;
+	}
+
+	/**
+	 * Returns the ID of a vector identical to fv, adding fv to the pool if there is none.
+	 * Returns -1 if fv is too large to be pooled.
+	 */
+	public int getID(FeatureVector fv) {
+
+		if (!accepts(fv))
+			return -1;
+
+		int id = ids.get(fv) - 1;
+		if (id < 0) {
+			id = vectors.size();
+			fv.shared = true;
+			vectors.add(fv);
+			ids.put(fv, id + 1);
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the pooled vector identical to fv, adding fv to the pool if there is none.
+	 * Vectors that are too large to be pooled are returned as is.
+	 */
+	public FeatureVector intern(FeatureVector fv) {
+		int id = getID(fv);
+		return (id < 0) ? fv : vectors.get(id);
+	}
+
+	/**
+	 * Writes a feature vector array like ArrayUtil.writeFeatureVectorArrayCompact, except
+	 * that pooled vectors are written as a reference to their ID.
+	 */
+	public void writeArray(DataOutput out, FeatureVector[] a) throws IOException {
+		ArrayUtil.writeVarInt(out, a == null ? 0 : a.length + 1);
+		if (a == null) return;
+		for (int i = 0; i < a.length; i++) {
+			int id = getID(a[i]);
+			ArrayUtil.writeVarInt(out, id + 1);
+			if (id < 0)
+				a[i].writeCompact(out);
+		}
+	}
+
+	/**
+	 * Reads an array written by writeArray. Vectors that are not pooled are read into the
+	 * unshared feature vectors of <b>reuse</b> where possible.
+	 */
+	public FeatureVector[] readArray(DataInput in, FeatureVector[] reuse) throws IOException {
+		int n = ArrayUtil.readVarInt(in) - 1;
+		if (n < 0) return null;
+		FeatureVector[] res = (reuse != null && reuse.length == n) ? reuse : new FeatureVector[n];
+		for (int i = 0; i < n; i++) {
+			int id = ArrayUtil.readVarInt(in) - 1;
+			if (id >= 0) {
+				if (id >= vectors.size())
+					throw new IOException("Reference to feature vector " + id + " outside of pool of size " + vectors.size());
+				res[i] = vectors.get(id);
+			} else {
+				if (reuse != null && i < reuse.length && reuse[i] != null && !reuse[i].isShared())
+					res[i] = reuse[i];
+				else
+					res[i] = new FeatureVector();
+				res[i].readCompact(in);
+			}
+		}
+		return res;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeLong(formatVersion);
+		out.writeInt(maxFeatures);
+		ArrayUtil.writeVarInt(out, vectors.size());
+		for (FeatureVector fv : vectors)
+			fv.writeCompact(out);
+	}
+
+	public FeatureVectorPool(DataInput in) throws IOException {
+		long id = in.readLong();
+		if (id != formatVersion) throw new IOException("Wrong format version, got " + id);
+		maxFeatures = in.readInt();
+		int n = ArrayUtil.readVarInt(in);
+		vectors.ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			FeatureVector fv = new FeatureVector();
+			fv.readCompact(in);
+			fv.shared = true;
+			vectors.add(fv);
+			ids.put(fv, i + 1);
+		}
+	}
+}
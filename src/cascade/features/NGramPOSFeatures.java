@@ -127,7 +127,7 @@ public class NGramPOSFeatures extends FeatureGenerator implements Serializable {
 		sb.delete(0,sb.length());
 		
 		if (model.order > 1) {
-			sb.append("WC=").append(model.POSAlphabet.reverseLookup(model.computeTagFromNGramID(null, model.order+1, edge, 0)));
+			sb.append("WC=").append(model.POSAlphabet.reverseLookup(model.getCodec().tag(edge, model.order+1, 0)));
 			
 			String wordstr1 = (conditionWords.contains(words[pos+1].toLowerCase())) ? words[pos+1].toLowerCase() : "<uncommon>";
 
@@ -137,7 +137,7 @@ public class NGramPOSFeatures extends FeatureGenerator implements Serializable {
 				for (int i = 1; i < j; i++)
 					sb.append('*');
 				
-				sb.append(model.POSAlphabet.reverseLookup(model.computeTagFromNGramID(null, model.order+1, edge, j)));
+				sb.append(model.POSAlphabet.reverseLookup(model.getCodec().tag(edge, model.order+1, j)));
 				int offset = pos-j+1;
 				boolean nullword = (offset < 1 || offset >= words.length);
 				String word = nullword ? "<NULLWORD>" : words[offset]; 
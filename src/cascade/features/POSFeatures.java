@@ -130,7 +130,7 @@ public class POSFeatures extends FeatureGenerator {
 		
 		// Add wildcard features
 		if (order > 2 && pos >= (order-1)) {
-			String tag0 = m.POSAlphabet.reverseLookup(m.computeTagFromNGramID(order, ngramID, 0));
+			String tag0 = m.POSAlphabet.reverseLookup(m.getCodec().tag(ngramID, order, 0));
 			for (int i = 2; i < order; i++) {
 
 				sb.delete(0, sb.length());
@@ -139,7 +139,7 @@ public class POSFeatures extends FeatureGenerator {
 					stars += "*";
 				}
 				
-				add(sb.append("WC=").append(m.POSAlphabet.reverseLookup(m.computeTagFromNGramID(order, ngramID, i))).append(stars).append(tag0));
+				add(sb.append("WC=").append(m.POSAlphabet.reverseLookup(m.getCodec().tag(ngramID, order, i))).append(stars).append(tag0));
 				addWordConditionalFeatures(inst, pos, i+1);
 				add(sb);
 			}
@@ -153,7 +153,7 @@ public class POSFeatures extends FeatureGenerator {
 		setWorkingAlphabet(m.featureAlphabet);
 
 		if (order < m.order)
-			addNGramFeatures(m, inst, pos, order, m.computeLowerOrderNGramID(order, ngramID));
+			addNGramFeatures(m, inst, pos, order, (int) m.getCodec().prefix(ngramID, m.order, order));
 		else
 			addNGramFeatures(m, inst, pos, order, ngramID);
 	}
@@ -164,7 +164,7 @@ public class POSFeatures extends FeatureGenerator {
 		NOrderPOS m = (NOrderPOS)model;
 		setWorkingAlphabet(m.featureAlphabet);
 
-		int ngram = (int) m.computeNGramIDFromEdge(s1, s2);
+		int ngram = (int) m.getCodec().join(s1, s2, m.order);
 		addNGramFeatures(m, inst, pos, m.order+1, ngram);	// 
 	}
 	
@@ -59,7 +59,7 @@ public class ScalableWeights extends Weights {
 	
 	public String toString() { return "ScalableWeights=[scale=" + scale + ", sumSquares=" + sumSquares + ", len=" + w.length + ", numRescales=" + numRescales + "]"; }
 
-	public void multiply(double a) {scale *= a; }
+	public void multiply(double a) {scale *= a; markChanged(); }
 	
 	private void ensureCapacity(FeatureVector fv) {
 		updateKeys = ArrayUtil.ensureCapacity(updateKeys, u+fv.size());
@@ -92,6 +92,7 @@ public class ScalableWeights extends Weights {
 		//System.out.println("Commited "  + u + " changes of norm " + Math.sqrt(totalchange));
 		// reset queue
 		u = 0;
+		markChanged();
 	}
 	@Override
 	public void increment(FeatureVector fv, double rate) {
@@ -123,6 +124,16 @@ public class ScalableWeights extends Weights {
 		}
 	}
 
+	@Override
+	public void increment(FeatureVector fv, int offset, int stride, double rate) {
+		ensureCapacity(fv);
+		for (int i = 0; i < fv.keys.length; i++) {
+			updateKeys[u] = fv.keys[i]*stride+offset;
+			updateVals[u] = rate;
+			u++;
+		}
+	}
+
 	@Override
 	public double score(FeatureVector fv, int offset) {
 		return super.score(fv, offset)*scale;
@@ -138,4 +149,36 @@ public class ScalableWeights extends Weights {
 		return super.scoreMixed(fv, offset)*scale;
 	}
 
+	@Override
+	public void scoreAll(FeatureVector fv, int offset, int stride, double[] scores, int n) {
+		super.scoreAll(fv, offset, stride, scores, n);
+		for (int i = 0; i < n; i++)
+			scores[i] *= scale;
+	}
+
+	public static void main(String args[]) {
+		
+		// test: a strided increment must move the score of the updated tag, and only that one, by rate
+		
+		int numTags = 5, tag = 3, feature = 2;
+		double rate = 0.5;
+		FeatureVector fv = new FeatureVector(new int[] {feature}, null);
+		
+		ScalableWeights w = new ScalableWeights(4*numTags);
+		w.multiply(0.5);
+		
+		double before[] = new double[numTags], after[] = new double[numTags];
+		w.scoreAll(fv, 0, numTags, before, numTags);
+		w.increment(fv, tag, numTags, rate);
+		w.commit();
+		w.scoreAll(fv, 0, numTags, after, numTags);
+		
+		for (int t = 0; t < numTags; t++) {
+			double expected = before[t] + ((t == tag) ? rate : 0);
+			if (Math.abs(after[t] - expected) > 1e-12)
+				throw new RuntimeException("score of tag " + t + " is " + after[t] + ", expected " + expected);
+		}
+		System.out.println(Arrays.toString(after));
+	}
+
 }
@@ -1,5 +1,7 @@
 package cascade.features;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -23,17 +25,36 @@ public class Weights implements Serializable {
 	 * All weights have a dense vector, regardless of representation. 
 	 */
 	public double w[];
+	
+	/**
+	 * Number of changes made to the weights, so that results computed with them can be reused 
+	 * until they change (see NOrderModel.computeInference). Code that writes to w directly must 
+	 * call markChanged.
+	 */
+	protected transient long version = 0;
 
 	public Weights() { w = null; }
 	public Weights(double w[]) { this.w = w; }
 	
-	public void increment(FeatureVector fv, double rate) { fv.increment(this.w, rate); }
-	public void increment(FeatureVector fv, int offset, double rate) { fv.increment(this.w, offset, rate); }
-	public void incrementMixed(FeatureVector fv, int offset, double rate){ fv.incrementMixed(this.w, offset, rate); }
+	public long getVersion() { return version; }
+	
+	/** Records that w has been changed other than through this class. */
+	public void markChanged() { version++; }
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		markChanged();
+	}
+	
+	public void increment(FeatureVector fv, double rate) { fv.increment(this.w, rate); version++; }
+	public void increment(FeatureVector fv, int offset, double rate) { fv.increment(this.w, offset, rate); version++; }
+	public void incrementMixed(FeatureVector fv, int offset, double rate){ fv.incrementMixed(this.w, offset, rate); version++; }
+	public void increment(FeatureVector fv, int offset, int stride, double rate) { fv.increment(this.w, offset, stride, rate); version++; }
 
 	public double score(FeatureVector fv) { return fv.score(w); } 
 	public double score(FeatureVector fv, int offset) { return fv.score(w, offset); }
 	public double scoreMixed(FeatureVector fv, int offset) { return fv.scoreMixed(w, offset); } 
+	public void scoreAll(FeatureVector fv, int offset, int stride, double [] scores, int n) { fv.scoreAll(w, offset, stride, scores, n); }
 	
 	public Weights getCopy() { return new Weights(Arrays.copyOf(w, w.length)); }
 	
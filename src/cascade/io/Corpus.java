@@ -7,6 +7,8 @@ import gnu.trove.TIntObjectHashMap;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -25,6 +27,8 @@ import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import cascade.features.FeatureVectorPool;
+import cascade.lattice.FilterMask;
 import cascade.lattice.Lattice;
 import cascade.model.CascadeModel;
 import cascade.programs.Options;
@@ -97,6 +101,28 @@ public class Corpus {
 	 */
 	public boolean useCompression = false;
 	
+	/**
+	 * Memory-map lattice files when reading them back, instead of streaming them; random access 
+	 * (see useRandomAccess) then seeks within the mapping. This only replaces the stream: lattices 
+	 * are still decoded into their own arrays, there are no lazy views into the mapping. Ignored if 
+	 * writeToRAM or useCompression is set, and for files too large to map (see MappedDataInput.map).
+	 */
+	public boolean useMemoryMapping = false;
+	
+	/**
+	 * If positive, feature vectors with at most this many features (e.g. n-gram edge features) are 
+	 * saved only once per lattice file, in a separate '-features' file, and lattices refer to them by ID. 
+	 */
+	public int poolFeatureVectors = 0;
+	
+	/**
+	 * Save only the filter mask (and the base scores it keeps) of each expanded lattice, instead of the
+	 * lattice itself. Lattices are then rebuilt from the previous level's lattices whenever they are read,
+	 * trading much smaller cache files for expanding (and computing features) again on every read.
+	 * Requires the models of all levels, see setModels.
+	 */
+	public boolean saveMasksOnly = false;
+	
 	/**
 	 * Keeps track of which files are using which output streams. 
 	 */
@@ -121,10 +147,18 @@ public class Corpus {
 	public Lattice[] develLattice;
 
 	
-	
+	/**
+	 * The models of each level, used to rebuild lattices that were saved as filter masks.
+	 */
+	private CascadeModel [] models = null;
+
 	public Corpus() {
 		
 	}
+
+	public void setModels(CascadeModel [] models) {
+		this.models = models;
+	}
 	
 	/**
 	 * @return pointer to the entire set of training Sequences
@@ -456,6 +490,8 @@ public class Corpus {
 		else
 			currentlyWritingDirectory = new int[test[partition].length+1];
 		currentlyWritingDirectoryName = fname + "-directory";
+		currentlyWritingFeaturesName = fname + "-features";
+		currentlyWritingPool = (poolFeatureVectors > 0) ? new FeatureVectorPool(poolFeatureVectors) : null;
 		currentlyWritingLatticeNum = 0;
 		options.print(1, String.format("will use directory '%s'\n", currentlyWritingDirectoryName));
 
@@ -466,13 +502,28 @@ public class Corpus {
 	 * 
 	 */
 	public void saveLatticeToCache(Lattice newLattice) throws IOException {
-		newLattice.write(latticeCacheOut);
+		newLattice.write(latticeCacheOut, currentlyWritingPool);
 		currentlyWritingDirectory[++currentlyWritingLatticeNum] = latticeCacheOut.size(); 
 		
 //		latticeCacheOut.writeObject(newLattice);
 //		latticeCacheOut.reset(); // this means don't keep track of which objects have already been saved to avoid saving them again. 
 	}	
 
+	/**
+	 * Writes a lattice that was expanded from <b>base</b> with <b>mask</b>. If saveMasksOnly is set,
+	 * only the mask is written, and the lattice is expanded again when it is read; otherwise mask 
+	 * is not used and may be null.
+	 */
+	public void saveLatticeToCache(Lattice newLattice, Lattice base, boolean [] mask) throws IOException {
+		if (!saveMasksOnly) {
+			saveLatticeToCache(newLattice);
+			return;
+		}
+
+		FilterMask.write(latticeCacheOut, base, mask, newLattice.model.expandsBaseEdges());
+		currentlyWritingDirectory[++currentlyWritingLatticeNum] = latticeCacheOut.size();
+	}
+
 	public void closeNewLatticeCache() throws IOException {
 		latticeCacheOut.close();
 		
@@ -480,6 +531,13 @@ public class Corpus {
 		ArrayUtil.writeIntArray(out, currentlyWritingDirectory);
 		out.close();
 		
+		if (currentlyWritingPool != null) {
+			out = getOutputStream(currentlyWritingFeaturesName);
+			currentlyWritingPool.write(out);
+			out.close();
+			currentlyWritingPool = null;
+		}
+		
 		latticeCacheOut = null;
 	}
 
@@ -530,18 +588,19 @@ public class Corpus {
 	/** the index in our lattice array that corresponds to the lattice we are about to read */
 	int currentlyReadingLatticeIndex = -1;
 	
-	DataInputStream latticeCacheIn = null;
+	LatticeCacheReader latticeCacheIn = null;
 		
 	public boolean useRandomAccess = false;
 
-	private int [][] latticeCacheDirectory = null;
-	private RandomAccessFile randomTrainSetAccess[] = null;
+	private LatticeCacheReader randomTrainSetAccess[] = null;
 	private Random random = null;
 	private TIntObjectHashMap<Sequence> randomSeqAccess = null;
 	
 	
 	private int [] currentlyWritingDirectory = null;
 	private String currentlyWritingDirectoryName = null;
+	private String currentlyWritingFeaturesName = null;
+	private FeatureVectorPool currentlyWritingPool = null;
 	
 	/**
 	 * start reading the training portion of the set of lattices corresponding 
@@ -559,20 +618,16 @@ public class Corpus {
 //			throw new RuntimeException("I seem to be in the middle of something!");
 		
 		if (useRandomAccess) {
-			if (latticeCacheDirectory == null)
-				latticeCacheDirectory = new int[numJackKnives][];
 			if (randomTrainSetAccess == null)
-				randomTrainSetAccess = new RandomAccessFile[numJackKnives];
+				randomTrainSetAccess = new LatticeCacheReader[numJackKnives];
 
 			if (currentlyReadingLevel != level) { // need to update all things
 				for (int i = 0; i < numJackKnives; i++) {
 					System.out.printf("Loading directory for partition %s, level %d\n", partitionNames[i], level);
 
-					DataInputStream in = new DataInputStream(new FileInputStream(getFnameFor(i, level) + "-directory"));
-					latticeCacheDirectory[i] = ArrayUtil.readIntArray(in);
-					in.close();
-
-					randomTrainSetAccess[i] = new RandomAccessFile(getFnameFor(i, level), "r");
+					if (randomTrainSetAccess[i] != null)
+						randomTrainSetAccess[i].close();
+					randomTrainSetAccess[i] = new LatticeCacheReader(i, level, true);
 				}
 			}
 		}
@@ -580,7 +635,7 @@ public class Corpus {
 
 		currentlyReadingType = TrainDevTest.Train;
 		latticeCacheInPartition = partition==0 ? 1 : 0;
-		latticeCacheIn = getInputStream(getFnameFor(latticeCacheInPartition, level));
+		openLatticeCacheIn(latticeCacheInPartition, level);
 		currentlyReadingPartition = partition;
 		currentlyReadingLevel = level;
 		currentlyReadingSeqIndex = 0;
@@ -601,7 +656,7 @@ public class Corpus {
 	public void switchToDevel(int partition, int level) throws FileNotFoundException, IOException {
 		currentlyReadingType = TrainDevTest.Dev;
 		latticeCacheInPartition = partition;
-		latticeCacheIn = getInputStream(getDevNameFor(level));
+		openLatticeCacheIn(-1, level);
 		currentlyReadingPartition = partition;
 		currentlyReadingLevel = level;
 		currentlyReadingSeqIndex = 0;
@@ -618,7 +673,7 @@ public class Corpus {
 	public void switchToTest(int partition, int level) throws IOException {
 		currentlyReadingType = TrainDevTest.Test;
 		latticeCacheInPartition = partition;
-		latticeCacheIn = getInputStream(getFnameFor(latticeCacheInPartition, level));
+		openLatticeCacheIn(latticeCacheInPartition, level);
 		currentlyReadingPartition = partition;
 		currentlyReadingLevel = level;
 		currentlyReadingSeqIndex = 0;
@@ -689,6 +744,13 @@ public class Corpus {
 	}
 	
 	public Lattice readRandomTrainLattice() throws IOException, ClassNotFoundException {
+		return readRandomTrainLattice(null);
+	}
+	
+	/**
+	 * See nextLattice(Lattice reuse).
+	 */
+	public Lattice readRandomTrainLattice(Lattice reuse) throws IOException, ClassNotFoundException {
 		
 		int inPartition = random.nextInt(numJackKnives);
 		if (inPartition == currentlyReadingPartition) latticeCacheInPartition ++;
@@ -696,17 +758,15 @@ public class Corpus {
 //		System.out.println("Randomly chose partition = " + partitionNames[inPartition]);
 
 
-		int [] directory = latticeCacheDirectory[inPartition];
+		LatticeCacheReader reader = randomTrainSetAccess[inPartition];
 		
-		int latticeNum = random.nextInt(directory.length-1);
+		int latticeNum = random.nextInt(reader.size());
 		
-		int offset = directory[latticeNum];
-//		System.out.printf("Reading lattice #%d, offset=%d / %d length\n", latticeNum, directory[latticeNum], 
+//		System.out.printf("Reading lattice #%d, offset=%d / %d length\n", latticeNum, reader.directory[latticeNum], 
 //				randomTrainSetAccess[inPartition].length());
 //		
 		
-		randomTrainSetAccess[inPartition].seek(directory[latticeNum]);
-		Lattice lattice = Lattice.readLattice(randomTrainSetAccess[inPartition]);
+		Lattice lattice = reader.read(latticeNum, reuse, null);
 		Sequence seq = randomSeqAccess.get(lattice.seqHash);
 		lattice.seq = seq;
 //		System.out.printf("Read lattice with seqhash %d == sequence #%d\n", lattice.seqHash, seq.id);
@@ -720,9 +780,25 @@ public class Corpus {
 		return nextLattice(true);
 	}
 	public Lattice nextLattice(boolean allowRandom) throws IOException, ClassNotFoundException{
+		return nextLattice(allowRandom, null);
+	}
+	
+	/**
+	 * Reads the next lattice into <b>reuse</b> (typically the previous lattice returned by this 
+	 * method) if possible, to avoid reallocating all of its arrays. The caller must no longer 
+	 * need <b>reuse</b> or anything it contains, e.g. its feature vectors.
+	 * 
+	 * @param reuse
+	 * A lattice that is no longer needed, or null.
+	 */
+	public Lattice nextLattice(Lattice reuse) throws IOException, ClassNotFoundException { 
+		return nextLattice(true, reuse);
+	}
+	
+	public Lattice nextLattice(boolean allowRandom, Lattice reuse) throws IOException, ClassNotFoundException{
 		
 		if (useRandomAccess && currentlyReadingType == TrainDevTest.Train && allowRandom)
-			return readRandomTrainLattice();
+			return readRandomTrainLattice(reuse);
 		
 //		if (currentlyReadingLevel == 0 && this.storeBaseLatticesInRAM)
 //			return nextLocalLattice();
@@ -730,7 +806,7 @@ public class Corpus {
 		// try reading an instance from the currently open cache
 		Lattice res = null;
 		try{
-			res = Lattice.readLattice(latticeCacheIn);
+			res = latticeCacheIn.read(reuse, getCurrentlyReadingSequences()[currentlyReadingSeqIndex]);
 			
 			//res= (Lattice) latticeCacheIn.readObject();
 		}
@@ -753,9 +829,9 @@ public class Corpus {
 						+"  hasMoreLattices says "+hasMoreLattices());
 			latticeCacheInPartition +=1;
 			if (latticeCacheInPartition == currentlyReadingPartition) latticeCacheInPartition ++;
-			latticeCacheIn = getInputStream(getFnameFor(latticeCacheInPartition, currentlyReadingLevel));
+			openLatticeCacheIn(latticeCacheInPartition, currentlyReadingLevel);
 		}
-		res = Lattice.readLattice(latticeCacheIn);
+		res = latticeCacheIn.read(reuse, getCurrentlyReadingSequences()[currentlyReadingSeqIndex]);
 		res.seq = getCurrentlyReadingSequences()[currentlyReadingSeqIndex];
 
 		if (res == null) throw new RuntimeException("next lattice failed!");
@@ -778,7 +854,153 @@ public class Corpus {
 		return prefix+File.separator+"l"+level+File.separator+"model";
 	}
 	
-	private DataInputStream getInputStream(String fname) throws IOException {
+	private boolean isMemoryMapping(String fname) {
+		return useMemoryMapping && !writeToRAM && !useCompression && MappedDataInput.canMap(fname);
+	}
+	
+	/**
+	 * Opens the lattice file of a partition (or of the development set, if partition is -1) for reading,
+	 * closing the one that was being read, if any.
+	 */
+	private void openLatticeCacheIn(int partition, int level) throws IOException {
+		if (latticeCacheIn != null) {
+			latticeCacheIn.close();
+			latticeCacheIn = null;
+		}
+		latticeCacheIn = new LatticeCacheReader(partition, level, false);
+	}
+	
+	/**
+	 * Reads the lattices of one lattice file, either in order or, if opened for random access,
+	 * by their number in the file's directory.
+	 * 
+	 * Lattices saved as a FilterMask (see saveMasksOnly) are rebuilt by expanding the lattice of the same
+	 * sentence in the previous level's file, which is read along with this one.
+	 */
+	private class LatticeCacheReader implements Closeable {
+		
+		/** the partition, or -1 for the development set */
+		final int partition;
+		final int level;
+		
+		DataInput in;
+		
+		/** the pooled feature vectors of the file, if any */
+		FeatureVectorPool pool;
+		
+		/** offset of each lattice in the file; only loaded for random access */
+		int [] directory = null;
+		
+		/** reader of the previous level, opened once a FilterMask is found */
+		LatticeCacheReader base = null;
+		Lattice baseLattice = null;
+		FilterMask mask = null;
+		
+		LatticeCacheReader(int partition, int level, boolean randomAccess) throws IOException {
+			this.partition = partition;
+			this.level = level;
+			
+			String fname = (partition < 0) ? getDevNameFor(level) : getFnameFor(partition, level);
+			if (randomAccess) {
+				DataInputStream din = new DataInputStream(new FileInputStream(fname + "-directory"));
+				directory = ArrayUtil.readIntArray(din);
+				din.close();
+				
+				if (isMemoryMapping(fname))
+					in = MappedDataInput.map(fname);
+				else
+					in = new RandomAccessFile(fname, "r");
+			} else
+				in = getInputStream(fname);
+			pool = readFeatureVectorPool(fname);
+		}
+		
+		/** number of lattices in the file; only known for random access */
+		int size() {
+			return directory.length-1;
+		}
+		
+		/**
+		 * Reads lattice number latticeNum, see read(reuse, seq).
+		 */
+		Lattice read(int latticeNum, Lattice reuse, Sequence seq) throws IOException {
+			if (in instanceof MappedDataInput)
+				((MappedDataInput) in).seek(directory[latticeNum]);
+			else
+				((RandomAccessFile) in).seek(directory[latticeNum]);
+			return read(latticeNum, reuse, seq, true);
+		}
+		
+		/**
+		 * Reads the next lattice, recycling <b>reuse</b> if possible (see nextLattice). 
+		 * 
+		 * @param seq
+		 * the sentence of the lattice, which is needed to expand a FilterMask. If null, it is looked up
+		 * among the training sequences.
+		 */
+		Lattice read(Lattice reuse, Sequence seq) throws IOException {
+			return read(-1, reuse, seq, false);
+		}
+		
+		private Lattice read(int latticeNum, Lattice reuse, Sequence seq, boolean randomAccess) throws IOException {
+			
+			long classID = in.readLong();
+			if (classID != FilterMask.classID)
+				return Lattice.readLattice(classID, in, reuse, pool);
+			
+			if (mask == null)
+				mask = new FilterMask();
+			mask.read(in);
+			
+			if (seq == null)
+				seq = randomSeqAccess.get(mask.seqHash);
+			if (seq == null || seq.hashCode() != mask.seqHash)
+				throw new IOException("Mis-matched sequence to lattice!");
+			
+			// the base lattice is only needed until it has been expanded, so it is always recycled
+			if (base == null)
+				base = new LatticeCacheReader(partition, level-1, randomAccess);
+			baseLattice = randomAccess ? base.read(latticeNum, baseLattice, seq) : base.read(baseLattice, seq);
+			baseLattice.seq = seq;
+			baseLattice.model = models[level-1];
+			
+			CascadeModel model = models[level];
+			Lattice lattice = model.expandLattice(baseLattice, mask.apply(baseLattice, model.expandsBaseEdges()));
+			
+			// scores are never saved
+			lattice.stateScores = null;
+			lattice.edgeScores = null;
+			
+			return lattice;
+		}
+		
+		public void close() throws IOException {
+			((Closeable) in).close();
+			if (base != null)
+				base.close();
+		}
+	}
+	
+	/**
+	 * Reads the pooled feature vectors saved with a lattice file, or returns null if there are none.
+	 */
+	private FeatureVectorPool readFeatureVectorPool(String fname) throws IOException {
+		
+		String poolName = fname + "-features";
+		if (writeToRAM ? (streamsBuffer == null || !streamsBuffer.containsKey(poolName)) : !new File(poolName).exists())
+			return null;
+		
+		DataInput in = getInputStream(poolName);
+		FeatureVectorPool pool = new FeatureVectorPool(in);
+		((Closeable) in).close();
+		
+		return pool;
+	}
+	
+	private DataInput getInputStream(String fname) throws IOException {
+		
+		if (isMemoryMapping(fname))
+			return MappedDataInput.map(fname);
 		
 		InputStream base = null;
 		
@@ -0,0 +1,174 @@
+package cascade.io;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import cascade.util.BulkDataInput;
+
+/**
+ * DataInput over a ByteBuffer, typically a memory-mapped lattice cache. Reads are served
+ * straight from the buffer, without copying through an input stream, and seek() allows jumping
+ * to the offsets stored in a cache's -directory file.
+ *
+ * Reads past the end of the buffer throw an EOFException, like a DataInputStream.
+ */
+public class MappedDataInput implements BulkDataInput, Closeable {
+
+	protected ByteBuffer buf;
+
+	public MappedDataInput(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	/**
+	 * Whether a file can be mapped: a ByteBuffer holds at most Integer.MAX_VALUE bytes, so larger 
+	 * files have to be read with a stream.
+	 */
+	public static boolean canMap(String fname) {
+		return new File(fname).length() <= Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Maps a file read-only into memory; see canMap.
+	 */
+	public static MappedDataInput map(String fname) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile(fname, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("cannot map " + fname + ": " + channel.size() + " bytes is more than a buffer can hold");
+			return new MappedDataInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			// the mapping stays valid after the channel is closed
+			file.close();
+		}
+	}
+
+	public void seek(long pos) throws IOException {
+		if (pos < 0 || pos > buf.limit())
+			throw new EOFException("cannot seek to " + pos + ", buffer has " + buf.limit() + " bytes");
+		buf.position((int) pos);
+	}
+
+	public long getFilePointer() {
+		return buf.position();
+	}
+
+	public long length() {
+		return buf.limit();
+	}
+
+	private final void require(int n) throws EOFException {
+		if (buf.remaining() < n)
+			throw new EOFException();
+	}
+
+	public void readFully(byte[] b) throws IOException {
+		readFully(b, 0, b.length);
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		require(len);
+		buf.get(b, off, len);
+	}
+
+	public int skipBytes(int n) {
+		n = Math.max(0, Math.min(n, buf.remaining()));
+		buf.position(buf.position() + n);
+		return n;
+	}
+
+	public boolean readBoolean() throws IOException {
+		require(1);
+		return buf.get() != 0;
+	}
+
+	public byte readByte() throws IOException {
+		require(1);
+		return buf.get();
+	}
+
+	public int readUnsignedByte() throws IOException {
+		require(1);
+		return buf.get() & 0xff;
+	}
+
+	public short readShort() throws IOException {
+		require(2);
+		return buf.getShort();
+	}
+
+	public int readUnsignedShort() throws IOException {
+		require(2);
+		return buf.getShort() & 0xffff;
+	}
+
+	public char readChar() throws IOException {
+		require(2);
+		return buf.getChar();
+	}
+
+	public int readInt() throws IOException {
+		require(4);
+		return buf.getInt();
+	}
+
+	public long readLong() throws IOException {
+		require(8);
+		return buf.getLong();
+	}
+
+	public float readFloat() throws IOException {
+		require(4);
+		return buf.getFloat();
+	}
+
+	public double readDouble() throws IOException {
+		require(8);
+		return buf.getDouble();
+	}
+
+	/**
+	 * Reads n ints into a, starting at offset off, directly from the buffer.
+	 */
+	public void readInts(int[] a, int off, int n) throws IOException {
+		require(4 * n);
+		buf.asIntBuffer().get(a, off, n);
+		buf.position(buf.position() + 4 * n);
+	}
+
+	/**
+	 * Reads n doubles into a, starting at offset off, directly from the buffer.
+	 */
+	public void readDoubles(double[] a, int off, int n) throws IOException {
+		require(8 * n);
+		buf.asDoubleBuffer().get(a, off, n);
+		buf.position(buf.position() + 8 * n);
+	}
+
+	/**
+	 * Not supported; lattice caches contain no text.
+	 */
+	public String readLine() throws IOException {
+		throw new UnsupportedOperationException("readLine is not supported");
+	}
+
+	public String readUTF() throws IOException {
+		return DataInputStream.readUTF(this);
+	}
+
+	/**
+	 * Drops the reference to the buffer; a mapping is released once it is garbage collected.
+	 */
+	public void close() {
+		buf = null;
+	}
+}
@@ -0,0 +1,106 @@
+package cascade.lattice;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * The filter mask that a lattice was expanded with, together with the scores of the base lattice
+ * that the expansion reads: the marginals of the unpruned edges, or the scores of the unpruned
+ * states if the next model does not expand base edges (see CascadeModel.expandsBaseEdges).
+ *
+ * This is all that is needed to expand the same base lattice again, so it can be saved in place of
+ * the expanded lattice (see Corpus.saveMasksOnly). Like a lattice, it is written with a leading
+ * classID, which Lattice.readLattice does not accept.
+ */
+public class FilterMask {
+
+	private static final long serialVersionUID = 1L;
+	public static final long classID = 2;
+
+	public int seqHash;
+
+	/**
+	 * Number of base edges (or states) covered by the mask.
+	 */
+	public int length;
+
+	/**
+	 * The mask, and the base scores of every unpruned entry (NaN for pruned ones). Both may be
+	 * longer than length.
+	 */
+	public boolean [] mask = null;
+	public double [] scores = null;
+
+	/**
+	 * Writes the mask that <b>base</b> was expanded with, along with the current scores of base.
+	 *
+	 * @param edges
+	 * whether the mask is over the edges of base (or over its states).
+	 */
+	public static void write(DataOutput out, Lattice base, boolean [] mask, boolean edges) throws IOException {
+
+		out.writeLong(classID);
+		out.writeLong(serialVersionUID);
+		out.writeInt(base.seqHash);
+
+		int n = edges ? base.getNumEdges() : base.getNumStates();
+		double [] scores = edges ? base.edgeScores : base.stateScores;
+
+		// 8 mask entries per byte, then only the scores that are needed
+		ArrayUtil.writeVarInt(out, n);
+		for (int i = 0; i < n; i += 8) {
+			int bits = 0;
+			for (int j = i; j < n && j < i+8; j++)
+				if (mask[j]) bits |= 1 << (j-i);
+			out.writeByte(bits);
+		}
+		for (int i = 0; i < n; i++)
+			if (mask[i])
+				out.writeDouble(scores[i]);
+	}
+
+	/**
+	 * Reads a mask written by write(), after its classID has been read; the arrays are reused
+	 * if they are large enough.
+	 */
+	public void read(DataInput in) throws IOException {
+
+		long id = in.readLong();
+		if (id != serialVersionUID) throw new IOException("Wrong serial version, got " + id);
+
+		seqHash = in.readInt();
+		length = ArrayUtil.readVarInt(in);
+		mask = ArrayUtil.ensureCapacity(mask, length);
+		scores = ArrayUtil.ensureCapacity(scores, length);
+
+		for (int i = 0; i < length; i += 8) {
+			int bits = in.readUnsignedByte();
+			for (int j = i; j < length && j < i+8; j++)
+				mask[j] = (bits & (1 << (j-i))) != 0;
+		}
+		for (int i = 0; i < length; i++)
+			scores[i] = mask[i] ? in.readDouble() : Double.NaN;
+	}
+
+	/**
+	 * Restores the scores of <b>base</b> that the mask was saved with. base must be the lattice
+	 * the mask was computed for. The scores array is shared with base until the next read().
+	 *
+	 * @return the mask
+	 */
+	public boolean [] apply(Lattice base, boolean edges) throws IOException {
+
+		if (base.seqHash != seqHash || length != (edges ? base.getNumEdges() : base.getNumStates()))
+			throw new IOException("Mis-matched filter mask to lattice!");
+
+		if (edges)
+			base.edgeScores = scores;
+		else
+			base.stateScores = scores;
+
+		return mask;
+	}
+}
@@ -0,0 +1,120 @@
+package cascade.lattice;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * K-best semiring: for each state, the scores of the K best partial paths ending at (starting from)
+ * that state, in decreasing order. The r'th best of state idx is stored at idx*K+r, together with
+ * the edge it goes through (alphaArgs, betaArgs) and its rank among the values of the state at the
+ * other end of that edge (alphaRanks, betaRanks). States with fewer than K partial paths are padded
+ * with -infinity and edge -1.
+ *
+ * Each state merges the sorted lists of its neighbors in O(K * n) for n edges. Ties go to the first
+ * edge, so with K = 1 this gives exactly the same results as MaxPlusKernel.
+ */
+public final class KBestKernel extends SemiringKernel {
+
+	/**
+	 * Number of partial paths kept per state.
+	 */
+	public int K = 1;
+
+	/** rank of each value in the list of the neighbor it extends (0 if the neighbor is NULL) */
+	public int [] alphaRanks, betaRanks;
+
+	// next rank to take from each neighbor during a merge
+	private int [] heads = new int[16];
+
+	public KBestKernel() {
+	}
+
+	public KBestKernel(int K) {
+		this.K = K;
+	}
+
+	@Override
+	public int getWidth() {
+		return K;
+	}
+
+	@Override
+	public void ensureCapacity(Lattice lattice) {
+		super.ensureCapacity(lattice);
+		int n = lattice.getNumStates() * K;
+		alphaRanks = ArrayUtil.ensureCapacity(alphaRanks, n);
+		betaRanks = ArrayUtil.ensureCapacity(betaRanks, n);
+	}
+
+	@Override
+	protected void combine(Lattice lattice, int idx, int [] adjIdx, int lo, int n, int [] otherEnds, boolean forward) {
+		merge(lattice, idx, adjIdx, lo, otherEnds, 0, 0, 0, n, forward);
+	}
+
+	@Override
+	protected void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward) {
+		merge(lattice, idx, null, 0, null, first, stride, other, n, forward);
+	}
+
+	/**
+	 * Merges the sorted lists of the n neighbors of state idx, whose edges are given as in combine,
+	 * or as in combineDense if adjIdx is null.
+	 */
+	private void merge(Lattice lattice, int idx, int [] adjIdx, int lo, int [] otherEnds,
+			int first, int stride, int other, int n, boolean forward) {
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+		final int [] args = forward ? alphaArgs : betaArgs;
+		final int [] ranks = forward ? alphaRanks : betaRanks;
+		final int K = this.K;
+
+		heads = ArrayUtil.ensureCapacity(heads, n);
+		for (int j = 0; j < n; j++)
+			heads[j] = 0;
+
+		for (int r = 0, out = idx*K; r < K; r++, out++) {
+
+			double max = Double.NEGATIVE_INFINITY;
+			int argmax = -1, argEdge = -1;
+
+			for (int j = 0; j < n; j++) {
+
+				int edgeIdx = (adjIdx == null) ? first + j*stride : adjIdx[lo+j];
+				int neighbor = (adjIdx == null) ? other + j : otherEnds[edgeIdx];
+
+				double val;
+				if (neighbor == Lattice.NULL_IDX)
+					val = (heads[j] == 0) ? edgeScores[edgeIdx] : Double.NEGATIVE_INFINITY;
+				else
+					val = (heads[j] < K) ? edgeScores[edgeIdx] + vals[neighbor*K + heads[j]] : Double.NEGATIVE_INFINITY;
+
+				if (val > max) {
+					argmax = j;
+					argEdge = edgeIdx;
+					max = val;
+				}
+			}
+
+			if (argmax == -1) {
+				if (r == 0)
+					throw new RuntimeException(forward ? "computing Alpha failed: invalid argmax" : "computing Beta failed: invalid argmax");
+				vals[out] = Double.NEGATIVE_INFINITY;
+				args[out] = -1;
+				ranks[out] = -1;
+				continue;
+			}
+
+			vals[out] = max;
+			args[out] = argEdge;
+			ranks[out] = heads[argmax]++;
+		}
+	}
+
+	/**
+	 * Computes the best max-marginal of each edge, as MaxPlusKernel does.
+	 */
+	@Override
+	public void computeEdgeMarginals(Lattice lattice, double[] marginalVals) {
+		MaxPlusKernel.computeMaxMarginals(lattice, alphaVals, betaVals, K, 0, lattice.getNumEdges(), marginalVals);
+	}
+}
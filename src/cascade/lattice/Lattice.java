@@ -9,6 +9,7 @@ import java.util.Arrays;
 import gnu.trove.TDoubleArrayList;
 import gnu.trove.TIntArrayList;
 import cascade.features.FeatureVector;
+import cascade.features.FeatureVectorPool;
 import cascade.features.Weights;
 import cascade.io.Sequence;
 import cascade.model.CascadeModel;
@@ -35,10 +36,21 @@ public class Lattice {
 	/**
 	 * 
 	 */
-	protected static final long serialVersionUID = 2L;
+	protected static final long serialVersionUID = 3L;
 	protected static final long classID = 0;
 	
+	/**
+	 * Version of the uncompressed format, which is still readable. 
+	 */
+	protected static final long legacySerialVersionUID = 2L;
+	
 	public static final int NULL_IDX = -1;
+	
+	/**
+	 * If true, newly built lattices are re-validated against the model after construction 
+	 * (slow; see Options.debugLattices).
+	 */
+	public static boolean debug = false;
 
 	protected int length;
 
@@ -55,16 +67,40 @@ public class Lattice {
 	 * an index into the stateIDs array. 
 	 */
 	protected int statePosOffsets[]; 
+	
+	/**
+	 * lookup index used by findStateIdx: for each position, the (state ID, linear index)
+	 * pairs packed into longs and sorted by state ID. Null if the state IDs are already
+	 * sorted within each position, in which case they are searched directly. 
+	 * Built lazily; see invalidateIndices.
+	 */
+	private long stateIndex[] = null;
+	private boolean stateIndexValid = false;
+	
+	/**
+	 * position of each state and each edge; inverse of statePosOffsets and edgePosOffsets. 
+	 * Built lazily; see invalidateIndices.
+	 */
+	private int statePos[] = null;
+	private int edgePos[] = null;
+	
+	/**
+	 * whether the edges at each position form a dense block, see isDenseEdgeBlock. 
+	 * Built lazily; see invalidateIndices.
+	 */
+	private boolean denseEdgePos[] = null;
 
 	/**
-	 * edges coming into the state identified by position in the sentence, 
-	 * and its index (e.g. if there are 3 states at position 5, statenum would be 0..2).
-	 * last entry is an array of lattice edge indices. 
+	 * edges coming into each state, stored in compressed sparse row form: the
+	 * edges coming into the state with linear index idx are 
+	 * leftEdgeIdx[leftEdgeOffsets[idx]] ... leftEdgeIdx[leftEdgeOffsets[idx+1]-1].
 	 * See edgeLeftStates and edgeRightStates.
 	 */
-	protected int leftEdgeIdx[][][]; // pos x statenum x # left edges
+	protected int leftEdgeIdx[]; // concatenated left edges of all states
+	protected int leftEdgeOffsets[]; // # states + 1
 	/** see leftEdgeIdx */
-	protected int rightEdgeIdx[][][]; // pos x statenum x # right edges
+	protected int rightEdgeIdx[]; // concatenated right edges of all states
+	protected int rightEdgeOffsets[]; // # states + 1
 
 	// edge storing component
 	/** maps from a position in the lattice to the first edge at that position 
@@ -93,6 +129,13 @@ public class Lattice {
 	public FeatureVector [] fvState = null;
 	public FeatureVector [] fvEdge = null;
 	
+	/**
+	 * If true, the feature vectors have not been computed yet (see NOrderPOS.lazyFeatures), and
+	 * baseMarginals holds the initial state scores, which are needed to compute them.
+	 */
+	public boolean featuresPending = false;
+	public double [] baseMarginals = null;
+	
 	// scores
 	public double [] stateScores = null;
 	public double [] edgeScores = null;
@@ -123,14 +166,52 @@ public class Lattice {
 	 * @throws IOException
 	 */
 	public static Lattice readLattice(DataInput in) throws IOException {
+		return readLattice(in, null);
+	}
+	
+	/**
+	 * Same as readLattice(in), but if <b>reuse</b> is of the class that was written, the lattice is
+	 * read into <b>reuse</b> in place, recycling its arrays wherever their capacity allows. 
+	 * 
+	 * The previous contents of <b>reuse</b> (including its feature vectors) are overwritten, so the
+	 * caller must be done with it.
+	 * 
+	 * @param in
+	 * @param reuse
+	 * A lattice that is no longer needed, or null.
+	 * @return
+	 * @throws IOException
+	 */
+	public static Lattice readLattice(DataInput in, Lattice reuse) throws IOException {
+		return readLattice(in, reuse, null);
+	}
+	
+	/**
+	 * Same as readLattice(in, reuse), for lattices written with a FeatureVectorPool (see write).
+	 * 
+	 * @param pool
+	 * The pool the lattice was written with, or null. 
+	 */
+	public static Lattice readLattice(DataInput in, Lattice reuse, FeatureVectorPool pool) throws IOException {
+		return readLattice(in.readLong(), in, reuse, pool);
+	}
+	
+	/**
+	 * Same as readLattice(in, reuse, pool), when the classID has already been read from <b>in</b>.
+	 * Returns null if classID is not that of a lattice. 
+	 */
+	public static Lattice readLattice(long classID, DataInput in, Lattice reuse, FeatureVectorPool pool) throws IOException {
 		
-		long classID = in.readLong();
+		Lattice lattice = null;
+		if (classID == Lattice.classID) 
+			lattice = (reuse != null && reuse.getClass() == Lattice.class) ? reuse : new Lattice();
+		else if (classID == ZeroOrderLattice.classID) 
+			lattice = (reuse != null && reuse.getClass() == ZeroOrderLattice.class) ? reuse : new ZeroOrderLattice();
+		else
+			return null;
 		
-		if (classID == Lattice.classID)
-			return new Lattice(in);
-		else if (classID == ZeroOrderLattice.classID)
-			return new ZeroOrderLattice(in);
-		return null;
+		lattice.read(in, pool);
+		return lattice;
 		
 	}
 	
@@ -205,56 +286,87 @@ public class Lattice {
 		statePosOffsets = new int[length + 1];
 		edgePosOffsets = new int[length + 2]; // handle starting and ending edges
 
-		leftEdgeIdx = new int[length][][];
-		rightEdgeIdx = new int[length][][];
-
 		// ----------------------------------------------------------------------
 		// Pass 1: compute the number of valid states in the graph at each
 		// position in the new graph,
 		// including the filtering.
 		
-		TIntArrayList newStateIDs = new TIntArrayList();
-		TDoubleArrayList newStateScores = new TDoubleArrayList();
-
-		m.generateValidStates(base, mask, newStateIDs, newStateScores, statePosOffsets);
-
-		// dump stack of stateIDs / scores to native array
-		stateIDs = newStateIDs.toNativeArray();
-		stateScores = newStateScores.toNativeArray();
-
-		// ----------------------------------------------------------------------
-		// Pass 2: check for unreachable states (
-		int nstates = stateIDs.length;
-		int numUnreachable = checkForUnreachableStates(m, false);
-
-		if (numUnreachable == nstates) {
-			System.out.println("WARNING: ALL STATES ARE UNREACHABLE");
-		} else
-			 numUnreachable = checkForUnreachableStates(m, true);
+		LatticeBuilder builder = LatticeBuilder.get();
+		builder.reset();
 		
-		if (stateIDs.length == 0) {
+		m.generateValidStates(base, mask, builder, statePosOffsets);
+
+		if (builder.getNumStates() == 0) {
 			throw new RuntimeException("LATTICE IS EMPTY FOR SOME REASON!!!");
 		}
-//		if (numUnreachable > 0) {
-//			System.err.println("warning: sequence " + seq.id + " hash " + seqHash + " has " + numUnreachable + " unreachable states");
-//		}
-		// ----------------------------------------------------------------------
-		// Pass 3: compute valid edges between states
-		computeValidEdges(m);	
 		
-		numUnreachable = checkForUnreachableStates(m, false);
-
-		if (numUnreachable > 0) {
-			System.err.println("VERY BAD WARNING!!: sequence " + seq.id + " hash " + seqHash + " STILL HAS " + numUnreachable + " unreachable states");
-		}
-
+		if (m.expandsBaseEdges())
+			mapBaseEdgeStates(base, mask, builder);
+		
+		build(base, m, builder);
+		
 		if (statePosOffsets[length] == 0) {
 			base.printEdgeMask(mask);
 			//FIXME does not give any information
 			throw new RuntimeException("Lattice is broken, cannot proceed");
 		}
-		
+	}
+	
+	/**
+	 * Builds a new sparse Lattice from the states already added to the calling thread's 
+	 * LatticeBuilder by the base model while filtering (see CascadeModel.filterAndExpand), 
+	 * without a mask over the base lattice. statePosOffsets holds the position offsets of those 
+	 * states. If m.expandsBaseEdges(), the states must have been added with 
+	 * LatticeBuilder.addEdgeState.
+	 */
+	public Lattice(Lattice base, CascadeModel m, LatticeBuilder builder, int [] statePosOffsets) {
+		this(base.seq, m);
 
+		length = base.length;
+		this.statePosOffsets = statePosOffsets;
+		edgePosOffsets = new int[length + 2];
+		
+		build(base, m, builder);
+		
+		if (statePosOffsets[length] == 0)
+			throw new RuntimeException("Lattice is broken, cannot proceed");
+	}
+	
+	/**
+	 * Passes 2 and 3 of building a lattice from the states generated in builder.
+	 */
+	private void build(Lattice base, CascadeModel m, LatticeBuilder builder) {
+		
+		// the state buffer is searched directly while the edges are built
+		stateIDs = builder.stateIDs;
+		
+		// ----------------------------------------------------------------------
+		// Pass 2: compute candidate edges between all generated states
+		if (m.expandsBaseEdges()) 
+			computeValidEdges(base, builder);
+		else
+			computeValidEdges(m, builder);	
+		
+		// ----------------------------------------------------------------------
+		// Pass 3: remove states (and their edges) that are not on any complete path
+		int nstates = statePosOffsets[length];
+		int numUnreachable = pruneUnreachableStates(builder);
+		
+		if (numUnreachable == nstates) 
+			System.out.println("WARNING: ALL STATES ARE UNREACHABLE");
+		
+		// copy exactly-sized results out of the builder
+		builder.emitStates(this);
+		builder.emitEdges(this, statePosOffsets[length]);
+		invalidateIndices();
+		
+		if (debug) {
+			numUnreachable = checkForUnreachableStates(m, false);
+			
+			if (numUnreachable > 0) {
+				System.err.println("VERY BAD WARNING!!: sequence " + seq.id + " hash " + seqHash + " STILL HAS " + numUnreachable + " unreachable states");
+			}
+		}
 	}
 
 	/**
@@ -262,34 +374,410 @@ public class Lattice {
 	 * because it otherwise you get <b>MASSIVE MEMORY LEAKS AND SLOWDOWNS.</b>
 	 */
 	public Lattice(DataInput in) throws IOException {
+		read(in, null);
+	}
+
+	/**
+	 * Reads the lattice from <b>in</b>, reusing any arrays that are already large enough. 
+	 * Feature vector arrays are only kept if they have exactly the right length, since
+	 * their length determines the number of feature vectors. 
+	 */
+	protected void read(DataInput in, FeatureVectorPool pool) throws IOException {
 
 		long id=in.readLong();
-		if (id!= serialVersionUID) throw new IOException("Wrong serial version, got "+id);
+		if (id == serialVersionUID) 
+			readCompact(in, pool);
+		else if (id == legacySerialVersionUID)
+			readLegacy(in);
+		else
+			throw new IOException("Wrong serial version, got "+id);
+		
+		// scores are never saved
+		stateScores = null;
+		edgeScores = null;
+		meanEdgeScore = Double.NaN;
+		maxEdgeScore = Double.NaN;
+		
+		invalidateIndices();
+	}
+	
+	/**
+	 * Reads the compact format (see write).
+	 */
+	private void readCompact(DataInput in, FeatureVectorPool pool) throws IOException {
+		
+		seq = null;
+		model = null;
+		
+		seqHash = in.readInt();
+		length = ArrayUtil.readVarInt(in);
+		
+		statePosOffsets = readOffsets(in, statePosOffsets, length);
+		int nstates = statePosOffsets[length];
+		stateIDs = reuse(stateIDs, nstates);
+		for (int idx = 0; idx < nstates; idx++)
+			stateIDs[idx] = ArrayUtil.readVarInt(in);
+		
+		edgePosOffsets = readOffsets(in, edgePosOffsets, length + 1);
+		int nedges = edgePosOffsets[length + 1];
+		edgeLeftStates = reuse(edgeLeftStates, nedges);
+		edgeRightStates = reuse(edgeRightStates, nedges);
+		for (int pos = 0; pos <= length; pos++) {
+			int leftBase = (pos > 0) ? statePosOffsets[pos-1] : 0;
+			int rightBase = statePosOffsets[pos];
+			for (int edgeIdx = edgePosOffsets[pos]; edgeIdx < edgePosOffsets[pos+1]; edgeIdx++) {
+				edgeLeftStates[edgeIdx] = readStateIdx(in, leftBase);
+				edgeRightStates[edgeIdx] = readStateIdx(in, rightBase);
+			}
+		}
+		
+		int flags = in.readByte();
+		featuresPending = (flags & 8) != 0;
+		if ((flags & 1) != 0)
+			buildEdgeAdjacency(true);
+		else {
+			leftEdgeIdx = null;
+			leftEdgeOffsets = null;
+		}
+		if ((flags & 2) != 0)
+			buildEdgeAdjacency(false);
+		else {
+			rightEdgeIdx = null;
+			rightEdgeOffsets = null;
+		}
+		
+		if ((flags & 4) != 0) {
+			if (pool == null)
+				throw new IOException("Lattice refers to pooled feature vectors, but no pool was given");
+			fv = pool.readArray(in, fv);
+			fvPos = pool.readArray(in, fvPos);
+			fvState = pool.readArray(in, fvState);
+			fvEdge = pool.readArray(in, fvEdge);
+		} else {
+			fv = ArrayUtil.readFeatureVectorArrayCompact(in, fv);
+			fvPos = ArrayUtil.readFeatureVectorArrayCompact(in, fvPos);
+			fvState = ArrayUtil.readFeatureVectorArrayCompact(in, fvState);
+			fvEdge = ArrayUtil.readFeatureVectorArrayCompact(in, fvEdge);
+		}
+		
+		if (featuresPending) {
+			if (baseMarginals == null || baseMarginals.length < nstates)
+				baseMarginals = new double[nstates];
+			ArrayUtil.readDoubles(in, baseMarginals, nstates);
+		}
+	}
+
+	/**
+	 * Reads the uncompressed format written up to version 2.
+	 */
+	private void readLegacy(DataInput in) throws IOException {
+		
+		seq = null;
+		model = null;
+		
 		seqHash = in.readInt();
 		length = in.readInt();
-		stateIDs = ArrayUtil.readIntArray(in);
-		statePosOffsets = ArrayUtil.readIntArray(in);
-		edgePosOffsets = ArrayUtil.readIntArray(in);
-        leftEdgeIdx = ArrayUtil.readIntArrayAA(in);
-        rightEdgeIdx = ArrayUtil.readIntArrayAA(in);
-        edgePosOffsets = ArrayUtil.readIntArray(in);
-        edgeLeftStates = ArrayUtil.readIntArray(in);
-        edgeRightStates = ArrayUtil.readIntArray(in);
-        
+		featuresPending = false;
+		stateIDs = ArrayUtil.readIntArray(in, stateIDs);
+		statePosOffsets = ArrayUtil.readIntArray(in, statePosOffsets);
+		edgePosOffsets = ArrayUtil.readIntArray(in, edgePosOffsets);
+        readEdgeAdjacency(in, true);
+        readEdgeAdjacency(in, false);
+        edgePosOffsets = ArrayUtil.readIntArray(in, edgePosOffsets);
+        edgeLeftStates = ArrayUtil.readIntArray(in, edgeLeftStates);
+        edgeRightStates = ArrayUtil.readIntArray(in, edgeRightStates);
         
-        fv = ArrayUtil.readFeatureVectorArray(in);
-        fvPos = ArrayUtil.readFeatureVectorArray(in);
-        fvState = ArrayUtil.readFeatureVectorArray(in);
-        fvEdge = ArrayUtil.readFeatureVectorArray(in);
         
-		// scores are never saved
-		stateScores = null;
-		edgeScores = null;
+        fv = ArrayUtil.readFeatureVectorArray(in, fv);
+        fvPos = ArrayUtil.readFeatureVectorArray(in, fvPos);
+        fvState = ArrayUtil.readFeatureVectorArray(in, fvState);
+        fvEdge = ArrayUtil.readFeatureVectorArray(in, fvEdge);
+	}
+	
+	/**
+	 * Returns <b>x</b> if it can hold n elements, otherwise a new array.
+	 */
+	private static int [] reuse(int [] x, int n) {
+		return (x != null && x.length >= n) ? x : new int[n];
+	}
+	
+	/**
+	 * Writes the first npos+1 entries of a position offset array as the number of 
+	 * elements at each position.
+	 */
+	protected static void writeOffsets(DataOutput out, int [] offsets, int npos) throws IOException {
+		for (int pos = 0; pos < npos; pos++)
+			ArrayUtil.writeVarInt(out, offsets[pos+1] - offsets[pos]);
+	}
+	
+	protected static int [] readOffsets(DataInput in, int [] offsets, int npos) throws IOException {
+		offsets = reuse(offsets, npos + 1);
+		offsets[0] = 0;
+		for (int pos = 0; pos < npos; pos++)
+			offsets[pos+1] = offsets[pos] + ArrayUtil.readVarInt(in);
+		return offsets;
+	}
+	
+	/**
+	 * Writes a linear state index (or NULL_IDX) relative to the first state of its position.
+	 */
+	private static void writeStateIdx(DataOutput out, int idx, int base) throws IOException {
+		ArrayUtil.writeSignedVarInt(out, (idx == NULL_IDX) ? 0 : idx - base + 1);
+	}
+	
+	private static int readStateIdx(DataInput in, int base) throws IOException {
+		int v = ArrayUtil.readSignedVarInt(in);
+		return (v == 0) ? NULL_IDX : base + v - 1;
+	}
+	
+	/**
+	 * Rebuilds the left (or right) adjacency from the edge arrays. Each state's edges are 
+	 * listed in ascending edge order, which is the order in which lattices are built.
+	 */
+	private void buildEdgeAdjacency(boolean left) {
+		
+		int nstates = statePosOffsets[length];
+		int nedges = edgePosOffsets[length+1];
+		int [] states = left ? edgeRightStates : edgeLeftStates;
+		
+		int [] offsets = reuse(left ? leftEdgeOffsets : rightEdgeOffsets, nstates + 1);
+		for (int idx = 0; idx <= nstates; idx++)
+			offsets[idx] = 0;
+		
+		// counting sort of the edges by state, which keeps edges in order
+		for (int edgeIdx = 0; edgeIdx < nedges; edgeIdx++)
+			if (states[edgeIdx] != NULL_IDX)
+				offsets[states[edgeIdx]+1]++;
+		for (int idx = 0; idx < nstates; idx++)
+			offsets[idx+1] += offsets[idx];
+		
+		int [] edges = reuse(left ? leftEdgeIdx : rightEdgeIdx, offsets[nstates]);
+		for (int edgeIdx = 0; edgeIdx < nedges; edgeIdx++) {
+			int idx = states[edgeIdx];
+			if (idx != NULL_IDX)
+				edges[offsets[idx]++] = edgeIdx;
+		}
+		
+		// shift the offsets back to the start of each state's edges
+		for (int idx = nstates; idx > 0; idx--)
+			offsets[idx] = offsets[idx-1];
+		offsets[0] = 0;
+		
+		if (left) {
+			leftEdgeOffsets = offsets;
+			leftEdgeIdx = edges;
+		} else {
+			rightEdgeOffsets = offsets;
+			rightEdgeIdx = edges;
+		}
+	}
 
+	/**
+	 * Reads adjacency stored in the nested pos x statenum x edges layout directly
+	 * into the flat offset/edge arrays, without materializing the nested arrays.
+	 * Existing arrays are reused if they are large enough.
+	 */
+	private void readEdgeAdjacency(DataInput in, boolean left) throws IOException {
+		
+		int [] offsets = left ? leftEdgeOffsets : rightEdgeOffsets;
+		int [] edges = left ? leftEdgeIdx : rightEdgeIdx;
+		
+		if (in.readBoolean()) {
+			offsets = null;
+			edges = null;
+		} else {
+			
+			// fresh arrays are trimmed to size at the end
+			boolean recycled = (edges != null);
+			if (!recycled)
+				edges = new int[0];
+			
+			int nstates = statePosOffsets[length];
+			if (offsets == null || offsets.length < nstates + 1)
+				offsets = new int[nstates + 1];
+			offsets[0] = 0;
+			
+			int nedges = 0;
+			int npos = in.readInt();
+			int idx = 0;
+			for (int pos = 0; pos < npos; pos++) {
+				
+				if (in.readBoolean()) continue;
+				
+				int n = in.readInt();
+				for (int i = 0; i < n; i++, idx++) {
+					if (!in.readBoolean()) {
+						int nidx = in.readInt();
+						edges = ArrayUtil.ensureCapacity(edges, nedges + nidx);
+						ArrayUtil.readInts(in, edges, nedges, nidx);
+						nedges += nidx;
+					}
+					offsets[idx+1] = nedges;
+				}
+			}
+			
+			if (!recycled && edges.length != nedges)
+				edges = Arrays.copyOf(edges, nedges);
+		}
+		
+		if (left) {
+			leftEdgeOffsets = offsets;
+			leftEdgeIdx = edges;
+		} else {
+			rightEdgeOffsets = offsets;
+			rightEdgeIdx = edges;
+		}
 	}
+	
+	/**
+	 * Removes all states that cannot be reached from both the start and the end of the 
+	 * lattice, along with their edges, using one forward and one backward sweep over the edges. 
+	 * States, edges and adjacency in the builder are compacted in place, preserving their order. 
+	 * 
+	 * If no state survives, the lattice is left untouched.
+	 * 
+	 * @return the number of unreachable states
+	 */
+	protected int pruneUnreachableStates(LatticeBuilder b) {
+		
+		int nstates = statePosOffsets[length];
+		int nedges = edgePosOffsets[length+1];
+		
+		// forward sweep: states are ordered by position, so a single pass suffices
+		boolean [] reachableLeft = b.reachableLeft = ArrayUtil.ensureCapacity(b.reachableLeft, nstates);
+		for (int idx = 0; idx < nstates; idx++) {
+			reachableLeft[idx] = false;
+			for (int k = b.leftEdgeOffsets[idx]; k < b.leftEdgeOffsets[idx+1]; k++) {
+				int leftIdx = b.edgeLeftStates[b.leftEdgeIdx[k]];
+				if (leftIdx == NULL_IDX || reachableLeft[leftIdx]) {
+					reachableLeft[idx] = true;
+					break;
+				}
+			}
+		}
 
+		// backward sweep: a state is kept only if it is also reachable from the left
+		boolean [] reachableRight = b.reachableRight = ArrayUtil.ensureCapacity(b.reachableRight, nstates);
+		int num = 0;
+		for (int idx = nstates-1; idx >= 0; idx--) {
+			reachableRight[idx] = false;
+			if (reachableLeft[idx])
+				for (int k = b.rightEdgeOffsets[idx]; k < b.rightEdgeOffsets[idx+1]; k++) {
+					int rightIdx = b.edgeRightStates[b.rightEdgeIdx[k]];
+					if (rightIdx == NULL_IDX || reachableRight[rightIdx]) {
+						reachableRight[idx] = true;
+						break;
+					}
+				}
+			
+			if (!reachableRight[idx])
+				num++;
+		}
+		
+		if (num == 0 || num == nstates)
+			return num;
+		
+		// ----------------------------------------------------------------------
+		// compact states
+		int [] newStateIdx = b.newStateIdx = ArrayUtil.ensureCapacity(b.newStateIdx, nstates);
+		int n = 0;
+		int start = 0;
+		for (int pos = 0; pos < length; pos++) {
+			
+			// read the end of this position before it is overwritten
+			int end = statePosOffsets[pos+1];
+			
+			for (int idx = start; idx < end; idx++) {
+				if (reachableRight[idx]) {
+					b.stateIDs[n] = b.stateIDs[idx];
+					b.stateScores[n] = b.stateScores[idx];
+					newStateIdx[idx] = n++;
+				} else
+					newStateIdx[idx] = NULL_IDX;
+			}
+			
+			statePosOffsets[pos+1] = n;
+			start = end;
+		}
+		
+		b.numStates = n;
+		
+		// ----------------------------------------------------------------------
+		// compact edges: keep those whose endpoints both survive
+		int [] newEdgeIdx = b.newEdgeIdx = ArrayUtil.ensureCapacity(b.newEdgeIdx, nedges);
+		int m = 0;
+		start = 0;
+		for (int pos = 0; pos <= length; pos++) {
+			
+			int end = edgePosOffsets[pos+1];
+			
+			for (int idx = start; idx < end; idx++) {
+				
+				int leftIdx = b.edgeLeftStates[idx];
+				int rightIdx = b.edgeRightStates[idx];
+				
+				if ((leftIdx == NULL_IDX || reachableRight[leftIdx]) &&
+					(rightIdx == NULL_IDX || reachableRight[rightIdx])) {
+					
+					b.edgeLeftStates[m] = (leftIdx == NULL_IDX) ? NULL_IDX : newStateIdx[leftIdx];
+					b.edgeRightStates[m] = (rightIdx == NULL_IDX) ? NULL_IDX : newStateIdx[rightIdx];
+					newEdgeIdx[idx] = m++;
+				} else
+					newEdgeIdx[idx] = NULL_IDX;
+			}
+			
+			edgePosOffsets[pos+1] = m;
+			start = end;
+		}
+		
+		b.numEdges = m;
+		
+		// ----------------------------------------------------------------------
+		// compact adjacency
+		b.numLeftEdges = compactAdjacency(b.leftEdgeOffsets, b.leftEdgeIdx, reachableRight, newEdgeIdx, nstates);
+		b.numRightEdges = compactAdjacency(b.rightEdgeOffsets, b.rightEdgeIdx, reachableRight, newEdgeIdx, nstates);
+		
+		invalidateIndices();
+		
+		return num;
+	}
+	
+	/**
+	 * Compacts one direction of the adjacency in place, keeping only surviving states and edges
+	 * and renumbering edges according to newEdgeIdx.
+	 * 
+	 * @return the number of remaining entries
+	 */
+	private static int compactAdjacency(int [] offsets, int [] edges, boolean [] keepState, 
+			int [] newEdgeIdx, int nstates) {
+		
+		int n = 0, m = 0;
+		int start = offsets[0];
+		
+		for (int idx = 0; idx < nstates; idx++) {
+			
+			// read the end of this range before it can be overwritten
+			int end = offsets[idx+1];
+			
+			if (keepState[idx]) {
+				for (int k = start; k < end; k++)
+					if (newEdgeIdx[edges[k]] != NULL_IDX)
+						edges[m++] = newEdgeIdx[edges[k]];
+				
+				offsets[++n] = m;
+			}
+			
+			start = end;
+		}
+		
+		return m;
+	}
+	
 	/**
-	 * Somewhat inefficienctly, check for unreachable states and mark them 
+	 * Somewhat inefficienctly, check for unreachable states and mark them.
+	 * 
+	 * Lattice construction uses pruneUnreachableStates instead; this enumerates transitions 
+	 * through the model and is only used to validate lattices in debug mode.
 	 */
 	protected int checkForUnreachableStates(CascadeModel m, boolean overwrite) {
 			
@@ -298,9 +786,9 @@ public class Lattice {
 		boolean [] reachableRight = computeReachableBackward(m);
 		
 		// now build up a new list of state IDs
-		TIntArrayList reachableStateIDs = new TIntArrayList(stateIDs.length);
-		TDoubleArrayList reachableStateScores = new TDoubleArrayList(stateIDs.length);
-		int [] reachablePosOffsets = new int[statePosOffsets.length];
+		TIntArrayList reachableStateIDs = new TIntArrayList(getNumStates());
+		TDoubleArrayList reachableStateScores = new TDoubleArrayList(getNumStates());
+		int [] reachablePosOffsets = new int[length + 1];
 		
 		// XXX wtf is this???
 		if (!reachableLeft[0] || !reachableRight[0]){
@@ -326,7 +814,7 @@ public class Lattice {
 //				}
 				if (reachableLeft[idx] && reachableRight[idx]) {
 					reachableStateIDs.add(stateIDs[idx]);
-					reachableStateScores.add(stateIDs[idx]);
+					reachableStateScores.add(stateScores[idx]);
 				} else
 					num++;
 			}
@@ -341,22 +829,65 @@ public class Lattice {
 			stateIDs = reachableStateIDs.toNativeArray();
 			stateScores = reachableStateScores.toNativeArray();		
 			statePosOffsets = reachablePosOffsets;
+			invalidateIndices();
 		}
 
 		return num;
 	}
 
+	/**
+	 * The states reachable in one transition from a state, in states[0..n-1]: found with the 
+	 * non-allocating calls of the model if it bounds their number (see 
+	 * CascadeModel.getMaxNumTransitions), and with the allocating ones otherwise.
+	 */
+	private static final class Transitions {
+		
+		final CascadeModel m;
+		final int [] buf;
+		
+		int [] states;
+		int n;
+		
+		Transitions(CascadeModel m) {
+			this.m = m;
+			int max = m.getMaxNumTransitions();
+			buf = (max >= 0) ? new int[max] : null;
+		}
+		
+		void next(Sequence seq, int pos, int state) {
+			if (buf != null) {
+				states = buf;
+				n = m.getNextStates(seq, pos, state, buf);
+			} else {
+				states = m.getNextStates(seq, pos, state);
+				n = states.length;
+			}
+		}
+		
+		void previous(Sequence seq, int pos, int state) {
+			if (buf != null) {
+				states = buf;
+				n = m.getPreviousStates(seq, pos, state, buf);
+			} else {
+				states = m.getPreviousStates(seq, pos, state);
+				n = states.length;
+			}
+		}
+	}
+
 	protected boolean[] computeReachableForward(CascadeModel m) {
 		
 		boolean [] reachable = new boolean[statePosOffsets[length]]; 
 
 		// special case for length = 1
 		if(length == 1){
-			for (int i = 0; i < stateIDs.length; i++) {
+			for (int i = 0; i < getNumStates(); i++) {
 				reachable[i] = true;
 			}
 		}
 		
+		Transitions t = new Transitions(m);
+		
 		// loop through each position's valid EDGES 
 		for (int pos = 0; pos < (length-1); pos++) {
 
@@ -374,10 +905,11 @@ public class Lattice {
 					int state = stateIDs[idx];
 					
 					// search of valid next (right) states
-					for (int nextstate : m.getNextStates(seq, pos, state)) {
+					t.next(seq, pos, state);
+					for (int i = 0; i < t.n; i++) {
 						
 						// check if previous state is valid at previous position
-						int nextIdx = findStateIdx(pos+1, nextstate);
+						int nextIdx = findStateIdx(pos+1, t.states[i]);
 							
 						if (nextIdx != NULL_IDX)  
 							reachable[nextIdx] = true;
@@ -395,11 +927,13 @@ public class Lattice {
 
 		// special case for length = 1
 		if(length == 1){
-			for (int i = 0; i < stateIDs.length; i++) {
+			for (int i = 0; i < getNumStates(); i++) {
 				reachable[i] = true;
 			}
 		}
 		
+		Transitions t = new Transitions(m);
+		
 		// loop through each position's valid EDGES 
 		for (int pos = length-1; pos > 0; pos--) {
 
@@ -419,10 +953,11 @@ public class Lattice {
 					int state = stateIDs[idx];
 					
 					// search of valid prev (left) states
-					for (int prevstate : m.getPreviousStates(seq, pos, state)) {
+					t.previous(seq, pos, state);
+					for (int i = 0; i < t.n; i++) {
 						
 						// check if previous state is valid at previous position
-						int prevIdx = findStateIdx(pos-1, prevstate);
+						int prevIdx = findStateIdx(pos-1, t.states[i]);
 							
 						if (prevIdx != NULL_IDX) {
 							reachable[prevIdx] = true;
@@ -448,64 +983,68 @@ public class Lattice {
 	 * @param m
 	 */
 	public void computeValidEdges(CascadeModel m) {
+		
+		LatticeBuilder builder = LatticeBuilder.get();
+		
+		computeValidEdges(m, builder);
+		builder.emitEdges(this, statePosOffsets[length]);
+	}
+	
+	/**
+	 * Computes all of the valid edges according to the given Model into a LatticeBuilder.
+	 */
+	protected void computeValidEdges(CascadeModel m, LatticeBuilder b) {
 
-		TIntArrayList newEdgeLeftStates = new TIntArrayList();
-		TIntArrayList newEdgeRightStates = new TIntArrayList();
-
-		TIntArrayList newIdx = new TIntArrayList();
+		int nstates = statePosOffsets[length];
+		
+		b.resetEdges();
+		b.ensureStateCapacity(nstates);
+		
+		Transitions t = new Transitions(m);
 
 		// pass 1: -------------------------------------
 		// edges need to be computed LEFT first
 		
 		for (int pos = 0; pos < length; pos++) {
 
-			int numStates = getNumValidStates(pos);
-
-			leftEdgeIdx[pos] = new int[numStates][];
-			rightEdgeIdx[pos] = new int[numStates][];
+			int start = statePosOffsets[pos];
+			int end = statePosOffsets[pos+1];
 
-			for (int i = 0; i < numStates; i++) {
-				int idx = statePosOffsets[pos] + i; // idx of current state
+			for (int idx = start; idx < end; idx++) {
 
 				int state = stateIDs[idx];
 
 				// ------------- left edges
 				if (pos == 0) {
 
-					leftEdgeIdx[pos][i] = new int[1];
-					leftEdgeIdx[pos][i][0] = addEdge(pos, NULL_IDX, idx,
-							newEdgeLeftStates, newEdgeRightStates);
+					b.addLeftEdge(b.addEdge(NULL_IDX, idx));
 
 				} else {
 
-					// reset capacity to zero
-					newIdx.resetQuick();
-
 					// search of valid previous (left) states
-					for (int prevstate : m.getPreviousStates(seq, pos, state)) {
+					t.previous(seq, pos, state);
+					for (int i = 0; i < t.n; i++) {
 
 						// check if previous state is valid at previous position
-						int prevIdx = findStateIdx(pos - 1, prevstate);
+						int prevIdx = findStateIdx(pos - 1, t.states[i]);
 						if (prevIdx != NULL_IDX)
-							newIdx.add(addEdge(pos, prevIdx, idx,
-									newEdgeLeftStates, newEdgeRightStates));
+							b.addLeftEdge(b.addEdge(prevIdx, idx));
 
 					}
-
-					leftEdgeIdx[pos][i] = newIdx.toNativeArray();
 				}
 
-				edgePosOffsets[pos+1] = newEdgeLeftStates.size();						
+				b.leftEdgeOffsets[idx+1] = b.numLeftEdges;
+				edgePosOffsets[pos+1] = b.numEdges;						
 			}			
 		}
 		
 		// ------------- right edges
 		for (int pos = 0; pos < length; pos++) {
 
-			int numStates = getNumValidStates(pos);
+			int start = statePosOffsets[pos];
+			int end = statePosOffsets[pos+1];
 
-			for (int i = 0; i < numStates; i++) {
-				int idx = statePosOffsets[pos] + i; // idx of current state
+			for (int idx = start; idx < end; idx++) {
 
 				int state = stateIDs[idx];
 
@@ -513,46 +1052,155 @@ public class Lattice {
 				if (pos == (length - 1)) {
 	
 					// all states go to the finish.
-					rightEdgeIdx[pos][i] = new int[1];
-					rightEdgeIdx[pos][i][0] = addEdge(pos, idx, NULL_IDX,
-							newEdgeLeftStates, newEdgeRightStates);
+					b.addRightEdge(b.addEdge(idx, NULL_IDX));
 	
 				} else {
 	
-					newIdx.resetQuick();
-	
 					// search of valid next (right) states
-					for (int nextstate : m.getNextStates(seq, pos, state)) {
+					t.next(seq, pos, state);
+					for (int i = 0; i < t.n; i++) {
 	
 						// check if previous state is valid at previous position
-						int nextIdx = findStateIdx(pos+1, nextstate);
+						int nextIdx = findStateIdx(pos+1, t.states[i]);
 						if (nextIdx != NULL_IDX)
-							newIdx.add(findEdgeIdx(pos+1, idx, nextIdx,
-									newEdgeLeftStates, newEdgeRightStates));
+							b.addRightEdge(findEdgeIdx(idx, nextIdx, b));
 	
 					}
-	
-					rightEdgeIdx[pos][i] = newIdx.toNativeArray();
 				}
+				
+				b.rightEdgeOffsets[idx+1] = b.numRightEdges;
 			}
 
 		}
 		
-		edgePosOffsets[length+1] = newEdgeLeftStates.size();
+		edgePosOffsets[length+1] = b.numEdges;
+		
+		edgePos = null;
+		denseEdgePos = null;
+	}
 
-		edgeLeftStates = newEdgeLeftStates.toNativeArray();
-		edgeRightStates = newEdgeRightStates.toNativeArray();
+	/**
+	 * Maps the unpruned base edges, in order, to the states of this lattice, for a model whose 
+	 * states are edges of the base lattice (see CascadeModel.expandsBaseEdges); the final 
+	 * (state, null) edges are not states.
+	 */
+	private void mapBaseEdgeStates(Lattice base, boolean mask [], LatticeBuilder b) {
+		
+		int nstates = statePosOffsets[length];
+		
+		int nbase = base.getNumEdges();
+		int [] stateBaseEdges = b.stateBaseEdges = ArrayUtil.ensureCapacity(b.stateBaseEdges, nstates);
+		int [] baseEdgeStates = b.baseEdgeStates = ArrayUtil.ensureCapacity(b.baseEdgeStates, nbase);
+		
+		int n = 0;
+		for (int idx = 0; idx < nbase; idx++) {
+			if (idx < base.getEdgeOffset(length) && mask[idx]) {
+				if (n < nstates)
+					stateBaseEdges[n] = idx;
+				baseEdgeStates[idx] = n++;
+			} else
+				baseEdgeStates[idx] = NULL_IDX;
+		}
+		
+		if (n != nstates)
+			throw new RuntimeException("model generated " + nstates + " states from " + n + " unpruned edges");
 	}
+	
+	/**
+	 * Computes the valid edges of a lattice whose states are edges of the base lattice 
+	 * (see CascadeModel.expandsBaseEdges): there is an edge between two states at consecutive positions 
+	 * whenever the corresponding base edges share a base state. Only unpruned base edges
+	 * are visited, so no candidate states need to be enumerated. The base edge of each state, and 
+	 * the state of each base edge, must already be in b.stateBaseEdges and b.baseEdgeStates.
+	 * 
+	 * Edges are generated in the same order as computeValidEdges(CascadeModel), since the base
+	 * adjacency lists are themselves ordered by state ID.
+	 * 
+	 * @param base
+	 */
+	protected void computeValidEdges(Lattice base, LatticeBuilder b) {
+		
+		int nstates = statePosOffsets[length];
+		int [] stateBaseEdges = b.stateBaseEdges;
+		int [] baseEdgeStates = b.baseEdgeStates;
+		
+		b.resetEdges();
+		b.ensureStateCapacity(nstates);
+		
+		// ------------- left edges
+		for (int pos = 0; pos < length; pos++) {
+			
+			int start = statePosOffsets[pos];
+			int end = statePosOffsets[pos+1];
 
-	protected int findEdgeIdx(int pos, int prevIdx, int idx,
-			TIntArrayList newEdgeLeftStates, TIntArrayList newEdgeRightStates) {
+			for (int idx = start; idx < end; idx++) {
+				
+				if (pos == 0) {
+					
+					b.addLeftEdge(b.addEdge(NULL_IDX, idx));
+					
+				} else {
+					
+					// all base edges coming into the left end of this state's base edge
+					int baseIdx = base.edgeLeftStates[stateBaseEdges[idx]];
+					
+					for (int k = base.leftEdgeOffsets[baseIdx]; k < base.leftEdgeOffsets[baseIdx+1]; k++) {
+						
+						int prevIdx = baseEdgeStates[base.leftEdgeIdx[k]];
+						if (prevIdx != NULL_IDX)
+							b.addLeftEdge(b.addEdge(prevIdx, idx));
+					}
+				}
 
-		int relativeIdx = idx - statePosOffsets[pos];
+				b.leftEdgeOffsets[idx+1] = b.numLeftEdges;
+				edgePosOffsets[pos+1] = b.numEdges;						
+			}
+		}
+		
+		// ------------- right edges
+		for (int pos = 0; pos < length; pos++) {
 
-		int[] checkIdx = leftEdgeIdx[pos][relativeIdx];
-		for (int i = 0; i < checkIdx.length; i++)
-			if (newEdgeLeftStates.get(checkIdx[i]) == prevIdx)
-				return checkIdx[i];
+			int start = statePosOffsets[pos];
+			int end = statePosOffsets[pos+1];
+
+			for (int idx = start; idx < end; idx++) {
+				
+				if (pos == (length - 1)) {
+					
+					// all states go to the finish.
+					b.addRightEdge(b.addEdge(idx, NULL_IDX));
+					
+				} else {
+					
+					// all base edges leaving the right end of this state's base edge
+					int baseIdx = base.edgeRightStates[stateBaseEdges[idx]];
+					
+					for (int k = base.rightEdgeOffsets[baseIdx]; k < base.rightEdgeOffsets[baseIdx+1]; k++) {
+						
+						int nextIdx = baseEdgeStates[base.rightEdgeIdx[k]];
+						if (nextIdx != NULL_IDX)
+							b.addRightEdge(findEdgeIdx(idx, nextIdx, b));
+					}
+				}
+				
+				b.rightEdgeOffsets[idx+1] = b.numRightEdges;
+			}
+		}
+		
+		edgePosOffsets[length+1] = b.numEdges;
+		
+		edgePos = null;
+		denseEdgePos = null;
+	}
+
+	/**
+	 * Finds an edge between two states among the left edges accumulated in a LatticeBuilder.
+	 */
+	protected int findEdgeIdx(int prevIdx, int idx, LatticeBuilder b) {
+
+		for (int k = b.leftEdgeOffsets[idx]; k < b.leftEdgeOffsets[idx+1]; k++)
+			if (b.edgeLeftStates[b.leftEdgeIdx[k]] == prevIdx)
+				return b.leftEdgeIdx[k];
 
 		return NULL_IDX;
 	}
@@ -584,22 +1232,16 @@ public class Lattice {
 
 		if (pos < length) { // check from left
 			
-			int relativeIdx = idx - statePosOffsets[pos];
-			
-			int[] checkIdx = leftEdgeIdx[pos][relativeIdx];
-			for (int i = 0; i < checkIdx.length; i++)
-				if (edgeLeftStates[checkIdx[i]] == prevIdx)
-					return checkIdx[i];
+			for (int k = leftEdgeOffsets[idx]; k < leftEdgeOffsets[idx+1]; k++)
+				if (edgeLeftStates[leftEdgeIdx[k]] == prevIdx)
+					return leftEdgeIdx[k];
 			return NULL_IDX;
 			
 		} else { // check from right
 			
-			int relativeIdx = prevIdx - statePosOffsets[pos-1];
-
-			int[] checkIdx = rightEdgeIdx[pos-1][relativeIdx];
-			for (int i = 0; i < checkIdx.length; i++)
-				if (edgeRightStates[checkIdx[i]] == idx)
-					return checkIdx[i];
+			for (int k = rightEdgeOffsets[prevIdx]; k < rightEdgeOffsets[prevIdx+1]; k++)
+				if (edgeRightStates[rightEdgeIdx[k]] == idx)
+					return rightEdgeIdx[k];
 			return NULL_IDX;
 			
 		}
@@ -678,23 +1320,135 @@ public class Lattice {
 	 */
 	public int findStateIdx(int pos, int state) {
 
-		for (int idx = statePosOffsets[pos]; idx < statePosOffsets[pos + 1]; idx++)
-			if (getStateID(idx) == state)
-				return idx;
+		if (!stateIndexValid)
+			buildStateIndex();
+		
+		// binary search for the first entry with ID >= state
+		int lo = statePosOffsets[pos];
+		int hi = statePosOffsets[pos + 1];
+		
+		if (stateIndex == null) {
+			
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (getStateID(mid) < state)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			
+			if (lo < statePosOffsets[pos + 1] && getStateID(lo) == state)
+				return lo;
+			
+		} else {
+			
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if ((int)(stateIndex[mid] >>> 32) < state)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			
+			if (lo < statePosOffsets[pos + 1] && (int)(stateIndex[lo] >>> 32) == state)
+				return (int) stateIndex[lo];
+		}
 
 		return NULL_IDX;
 	}
-
-	protected int addEdge(int pos, int sl, int sr, TIntArrayList left,
-			TIntArrayList right) {
-
-		left.add(sl);
-		right.add(sr);
-
-		int edgeidx = left.size();
-		assert (left.size() == right.size());
-
-		return edgeidx - 1;
+	
+	/**
+	 * Builds the per-position index used by findStateIdx. If the state IDs at every position 
+	 * are already in ascending order, no extra memory is used.
+	 */
+	protected void buildStateIndex() {
+		
+		stateIndex = null;
+		stateIndexValid = true;
+		
+		boolean sorted = true;
+		for (int pos = 0; pos < length && sorted; pos++)
+			for (int idx = statePosOffsets[pos] + 1; idx < statePosOffsets[pos + 1]; idx++)
+				if (getStateID(idx - 1) > getStateID(idx)) {
+					sorted = false;
+					break;
+				}
+		
+		if (sorted) 
+			return;
+		
+		int nstates = statePosOffsets[length];
+		stateIndex = new long[nstates];
+		for (int idx = 0; idx < nstates; idx++)
+			stateIndex[idx] = ((long) getStateID(idx) << 32) | idx;
+		
+		for (int pos = 0; pos < length; pos++)
+			Arrays.sort(stateIndex, statePosOffsets[pos], statePosOffsets[pos + 1]);
+	}
+	
+	/**
+	 * Discards any lookup indices; must be called whenever the states of the lattice change.
+	 */
+	protected void invalidateIndices() {
+		stateIndex = null;
+		stateIndexValid = false;
+		statePos = null;
+		edgePos = null;
+		denseEdgePos = null;
+	}
+	
+	/**
+	 * Whether the edges at position pos form a dense block: every state at pos-1 is connected to
+	 * every state at pos, and edge getEdgeOffset(pos) + r*P + l connects the l'th state at pos-1 
+	 * to the r'th state at pos, where P is the number of states at pos-1. The edge scores at pos are then 
+	 * a row-major matrix with one row per state at pos, which inference can run over directly, 
+	 * without going through the edge adjacency.
+	 * 
+	 * The edges to and from the null state (pos = 0 and pos = length) are never dense.
+	 */
+	public boolean isDenseEdgeBlock(int pos) {
+		if (denseEdgePos == null)
+			denseEdgePos = computeDenseEdgeBlocks();
+		return denseEdgePos[pos];
+	}
+	
+	private boolean [] computeDenseEdgeBlocks() {
+		
+		boolean [] dense = new boolean[length+1];
+		
+		for (int pos = 1; pos < length; pos++) {
+			
+			int prevStart = statePosOffsets[pos-1];
+			int start = statePosOffsets[pos];
+			int P = start - prevStart;
+			int S = statePosOffsets[pos+1] - start;
+			
+			int edgeIdx = edgePosOffsets[pos];
+			if (edgePosOffsets[pos+1] - edgeIdx != P*S)
+				continue;
+			
+			boolean isDense = true;
+			for (int r = 0; r < S && isDense; r++)
+				for (int l = 0; l < P && isDense; l++, edgeIdx++)
+					isDense = edgeLeftStates[edgeIdx] == prevStart + l && edgeRightStates[edgeIdx] == start + r;
+			
+			dense[pos] = isDense;
+		}
+		
+		return dense;
+	}
+	
+	/**
+	 * Inverts an array of position offsets, i.e. computes the position of every index.
+	 */
+	private static int [] computePositions(int [] posOffsets, int npos) {
+		
+		int [] positions = new int[posOffsets[npos]];
+		for (int pos = 0; pos < npos; pos++)
+			for (int idx = posOffsets[pos]; idx < posOffsets[pos+1]; idx++)
+				positions[idx] = pos;
+		
+		return positions;
 	}
 
 	protected int getNumValidStates(int pos) {
@@ -718,16 +1472,64 @@ public class Lattice {
 		return statePosOffsets[pos];
 	}
 
+	/**
+	 * Returns the left edges of a given state at a given position. For debugging only (see print):
+	 * every call allocates a new array. Inner loops should iterate over getLeftEdgeStart/getLeftEdgeEnd
+	 * instead.
+	 * 
+	 * @param pos
+	 * @param state
+	 * index of the state relative to the start of the position
+	 */
 	public int[] getLeftEdges(int pos, int state) {
-		if (leftEdgeIdx != null && leftEdgeIdx.length > 0)
-			return leftEdgeIdx[pos][state];
-		else return null;
+		if (leftEdgeIdx != null) {
+			int idx = statePosOffsets[pos] + state;
+			return Arrays.copyOfRange(leftEdgeIdx, leftEdgeOffsets[idx], leftEdgeOffsets[idx+1]);
+		} else return null;
 	}
 
+	/** see getLeftEdges; for debugging only, allocates a new array on every call */
 	public int[] getRightEdges(int pos, int state) {
-		if (rightEdgeIdx != null && rightEdgeIdx.length > 0)
-			return rightEdgeIdx[pos][state];
-		else return null;
+		if (rightEdgeIdx != null) {
+			int idx = statePosOffsets[pos] + state;
+			return Arrays.copyOfRange(rightEdgeIdx, rightEdgeOffsets[idx], rightEdgeOffsets[idx+1]);
+		} else return null;
+	}
+	
+	/**
+	 * First entry of the left edges of the state with linear index idx; see getLeftEdge.
+	 */
+	public int getLeftEdgeStart(int idx) {
+		return leftEdgeOffsets[idx];
+	}
+
+	/**
+	 * One past the last entry of the left edges of the state with linear index idx.
+	 */
+	public int getLeftEdgeEnd(int idx) {
+		return leftEdgeOffsets[idx+1];
+	}
+	
+	/**
+	 * Linear edge index stored at entry k of the flat left adjacency array.
+	 */
+	public int getLeftEdge(int k) {
+		return leftEdgeIdx[k];
+	}
+
+	/** see getLeftEdgeStart */
+	public int getRightEdgeStart(int idx) {
+		return rightEdgeOffsets[idx];
+	}
+
+	/** see getLeftEdgeEnd */
+	public int getRightEdgeEnd(int idx) {
+		return rightEdgeOffsets[idx+1];
+	}
+
+	/** see getLeftEdge */
+	public int getRightEdge(int k) {
+		return rightEdgeIdx[k];
 	}
 
 	public int getLeftStateIdx(int edgeIdx) {
@@ -833,7 +1635,7 @@ public class Lattice {
 	public String edgesToString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append("Pos | edge");
-		for (int pos = 0; pos < edgePosOffsets.length -1; pos++) {
+		for (int pos = 0; pos <= length; pos++) {
 				int start = getEdgeOffset(pos);
 				int end = getEdgeOffset(pos + 1);
 				for (int idx = start; idx < end; idx++) {
@@ -1193,35 +1995,68 @@ public class Lattice {
 	}
 
 	/**
-	 * Replaces the serialization logic.
+	 * Replaces the serialization logic. 
+	 * 
+	 * Lattices are written in a compact format: counts and indices are variable-length ints, 
+	 * states and edges are stored relative to their position, adjacency is rebuilt from 
+	 * the edges on reading, and feature vectors are delta-encoded without a header of their own.
 	 * 
 	 * @param out
 	 * @throws IOException
 	 */
 	public void write(DataOutput out) throws IOException {
+		write(out, null);
+	}
+	
+	/**
+	 * Same as write(out), except that feature vectors accepted by <b>pool</b> are written as 
+	 * references into the pool, which must then be saved separately and given to readLattice.
+	 * 
+	 * @param pool
+	 * A pool, or null to write all feature vectors in full.
+	 */
+	public void write(DataOutput out, FeatureVectorPool pool) throws IOException {
 		
 		out.writeLong(classID);
 		
 		out.writeLong(serialVersionUID);
 		out.writeInt(seqHash);
-		out.writeInt(length);
-		ArrayUtil.writeIntArray(out, stateIDs);
-		ArrayUtil.writeIntArray(out, statePosOffsets);
-		ArrayUtil.writeIntArray(out, edgePosOffsets);
-		ArrayUtil.writeIntArrayAA(out, leftEdgeIdx);
-		ArrayUtil.writeIntArrayAA(out, rightEdgeIdx);
-		ArrayUtil.writeIntArray(out,edgePosOffsets);
-		ArrayUtil.writeIntArray(out,edgeLeftStates);
-		ArrayUtil.writeIntArray(out,edgeRightStates);
-		ArrayUtil.writeFeatureVectorArray(out,fv);
-		
-		ArrayUtil.writeFeatureVectorArray(out,fvPos);
-		ArrayUtil.writeFeatureVectorArray(out,fvState);
-		ArrayUtil.writeFeatureVectorArray(out,fvEdge);
+		ArrayUtil.writeVarInt(out, length);
 		
-		// scores are never saved. 
+		// arrays may be larger than needed if this lattice was recycled (see readLattice)
+		writeOffsets(out, statePosOffsets, length);
+		for (int idx = 0; idx < getNumStates(); idx++)
+			ArrayUtil.writeVarInt(out, stateIDs[idx]);
 		
+		writeOffsets(out, edgePosOffsets, length + 1);
+		for (int pos = 0; pos <= length; pos++) {
+			int leftBase = (pos > 0) ? statePosOffsets[pos-1] : 0;
+			int rightBase = statePosOffsets[pos];
+			for (int edgeIdx = edgePosOffsets[pos]; edgeIdx < edgePosOffsets[pos+1]; edgeIdx++) {
+				writeStateIdx(out, edgeLeftStates[edgeIdx], leftBase);
+				writeStateIdx(out, edgeRightStates[edgeIdx], rightBase);
+			}
+		}
 		
+		out.writeByte((leftEdgeIdx != null ? 1 : 0) | (rightEdgeIdx != null ? 2 : 0) | (pool != null ? 4 : 0)
+				| (featuresPending ? 8 : 0));
+		
+		if (pool != null) {
+			pool.writeArray(out,fv);
+			pool.writeArray(out,fvPos);
+			pool.writeArray(out,fvState);
+			pool.writeArray(out,fvEdge);
+		} else {
+			ArrayUtil.writeFeatureVectorArrayCompact(out,fv);
+			ArrayUtil.writeFeatureVectorArrayCompact(out,fvPos);
+			ArrayUtil.writeFeatureVectorArrayCompact(out,fvState);
+			ArrayUtil.writeFeatureVectorArrayCompact(out,fvEdge);
+		}
+		
+		if (featuresPending)
+			ArrayUtil.writeDoubles(out, baseMarginals, getNumStates());
+		
+		// scores are never saved. 
 	}
 
 	/**
@@ -1234,32 +2069,27 @@ public class Lattice {
 	 */
 	public int findStatePosOffset(int idx) {
 
-		int pos = 0;
-
-		while (idx >= statePosOffsets[pos]) {
-			if (pos >= statePosOffsets.length)
-				throw new RuntimeException("index " + idx + " is outside the range of states for this lattice");
-			else
-				pos++;
-		}
+		if (statePos == null)
+			statePos = computePositions(statePosOffsets, length);
+		
+		if (idx < 0 || idx >= statePos.length)
+			throw new RuntimeException("index " + idx + " is outside the range of states for this lattice");
 		
-		return pos-1; // pos will have advanced one extra step;
+		return statePos[idx];
 	}
 
 	/**
 	 * Find the corresponding position of the edge linearly indexed by <b>idx</b> (see findStatePosOffset)
 	 */
 	public int findEdgePosOffset(int idx) {
-		int pos = 0;
-
-		while (idx >= edgePosOffsets[pos]) {
-			if (pos >= edgePosOffsets.length)
-				throw new RuntimeException("index " + idx + " is outside the range of edge for this lattice");
-			else
-				pos++;
-		}
 		
-		return pos-1; // pos will have advanced one extra step;
+		if (edgePos == null)
+			edgePos = computePositions(edgePosOffsets, length+1);
+		
+		if (idx < 0 || idx >= edgePos.length)
+			throw new RuntimeException("index " + idx + " is outside the range of edge for this lattice");
+		
+		return edgePos[idx];
 	}
 	
 	
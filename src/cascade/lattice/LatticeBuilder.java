@@ -0,0 +1,172 @@
+package cascade.lattice;
+
+import java.util.Arrays;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * Scratch space for building lattices.
+ *
+ * States and edges are accumulated in growable primitive buffers that are kept between
+ * lattices, so they only ever grow to the largest lattice seen; the finished Lattice receives
+ * exactly-sized copies. Builders are not thread safe, so each thread uses its own (see get()).
+ *
+ */
+public class LatticeBuilder {
+
+	private static final ThreadLocal<LatticeBuilder> builders = new ThreadLocal<LatticeBuilder>() {
+		@Override
+		protected LatticeBuilder initialValue() {
+			return new LatticeBuilder();
+		}
+	};
+
+	/**
+	 * Returns the builder owned by the calling thread.
+	 */
+	public static LatticeBuilder get() {
+		return builders.get();
+	}
+
+	private static final int DEFAULT_CAPACITY = 1024;
+	
+	// states
+	int stateIDs[] = new int[DEFAULT_CAPACITY];
+	double stateScores[] = new double[DEFAULT_CAPACITY];
+	int numStates = 0;
+
+	// edges
+	int edgeLeftStates[] = new int[DEFAULT_CAPACITY];
+	int edgeRightStates[] = new int[DEFAULT_CAPACITY];
+	int numEdges = 0;
+
+	// adjacency (see Lattice.leftEdgeIdx)
+	int leftEdgeIdx[] = new int[DEFAULT_CAPACITY];
+	int leftEdgeOffsets[] = new int[DEFAULT_CAPACITY];
+	int numLeftEdges = 0;
+
+	int rightEdgeIdx[] = new int[DEFAULT_CAPACITY];
+	int rightEdgeOffsets[] = new int[DEFAULT_CAPACITY];
+	int numRightEdges = 0;
+
+	// per-state and per-edge working arrays
+	int stateBaseEdges[] = new int[DEFAULT_CAPACITY];
+	int baseEdgeStates[] = new int[DEFAULT_CAPACITY];
+	int newStateIdx[] = new int[DEFAULT_CAPACITY];
+	int newEdgeIdx[] = new int[DEFAULT_CAPACITY];
+	boolean reachableLeft[] = new boolean[DEFAULT_CAPACITY];
+	boolean reachableRight[] = new boolean[DEFAULT_CAPACITY];
+
+	/**
+	 * Clears all states and edges; buffers keep their capacity.
+	 */
+	public void reset() {
+		numStates = 0;
+		resetEdges();
+	}
+
+	/**
+	 * Clears all edges; states are kept.
+	 */
+	void resetEdges() {
+		numEdges = 0;
+		numLeftEdges = 0;
+		numRightEdges = 0;
+	}
+
+	/**
+	 * Adds a state with a given ID and score.
+	 */
+	public void addState(int id, double score) {
+		stateIDs = ArrayUtil.ensureCapacity(stateIDs, numStates);
+		stateScores = ArrayUtil.ensureCapacity(stateScores, numStates);
+
+		stateIDs[numStates] = id;
+		stateScores[numStates] = score;
+		numStates++;
+	}
+
+	/**
+	 * Prepares to add states for the unpruned edges of a base lattice with nbase edges (see
+	 * addEdgeState); every base edge starts out pruned.
+	 */
+	public void beginEdgeStates(int nbase) {
+		baseEdgeStates = ArrayUtil.ensureCapacity(baseEdgeStates, nbase);
+		Arrays.fill(baseEdgeStates, 0, nbase, Lattice.NULL_IDX);
+	}
+
+	/**
+	 * Adds a state for an unpruned base edge, which is then mapped to the new state (see 
+	 * CascadeModel.expandsBaseEdges). Edges must be added in order.
+	 */
+	public void addEdgeState(int baseEdgeIdx, int id, double score) {
+		stateBaseEdges = ArrayUtil.ensureCapacity(stateBaseEdges, numStates);
+		stateBaseEdges[numStates] = baseEdgeIdx;
+		baseEdgeStates[baseEdgeIdx] = numStates;
+		addState(id, score);
+	}
+
+	public int getNumStates() {
+		return numStates;
+	}
+
+	/**
+	 * Ensures the adjacency offset arrays can hold nstates states.
+	 */
+	void ensureStateCapacity(int nstates) {
+		leftEdgeOffsets = ArrayUtil.ensureCapacity(leftEdgeOffsets, nstates+1);
+		rightEdgeOffsets = ArrayUtil.ensureCapacity(rightEdgeOffsets, nstates+1);
+		leftEdgeOffsets[0] = 0;
+		rightEdgeOffsets[0] = 0;
+	}
+
+	/**
+	 * Adds an edge between two linear state indices and returns its linear index.
+	 */
+	int addEdge(int leftIdx, int rightIdx) {
+		edgeLeftStates = ArrayUtil.ensureCapacity(edgeLeftStates, numEdges);
+		edgeRightStates = ArrayUtil.ensureCapacity(edgeRightStates, numEdges);
+
+		edgeLeftStates[numEdges] = leftIdx;
+		edgeRightStates[numEdges] = rightIdx;
+
+		return numEdges++;
+	}
+
+	void addLeftEdge(int edgeIdx) {
+		leftEdgeIdx = ArrayUtil.ensureCapacity(leftEdgeIdx, numLeftEdges);
+		leftEdgeIdx[numLeftEdges++] = edgeIdx;
+	}
+
+	void addRightEdge(int edgeIdx) {
+		rightEdgeIdx = ArrayUtil.ensureCapacity(rightEdgeIdx, numRightEdges);
+		rightEdgeIdx[numRightEdges++] = edgeIdx;
+	}
+
+	/**
+	 * Copies the edges and adjacency of the first nstates states into a lattice.
+	 */
+	void emitEdges(Lattice lattice, int nstates) {
+		lattice.edgeLeftStates = Arrays.copyOf(edgeLeftStates, numEdges);
+		lattice.edgeRightStates = Arrays.copyOf(edgeRightStates, numEdges);
+		lattice.leftEdgeIdx = Arrays.copyOf(leftEdgeIdx, numLeftEdges);
+		lattice.rightEdgeIdx = Arrays.copyOf(rightEdgeIdx, numRightEdges);
+		lattice.leftEdgeOffsets = Arrays.copyOf(leftEdgeOffsets, nstates+1);
+		lattice.rightEdgeOffsets = Arrays.copyOf(rightEdgeOffsets, nstates+1);
+	}
+
+	/**
+	 * Copies the states into a lattice.
+	 */
+	void emitStates(Lattice lattice) {
+		lattice.stateIDs = Arrays.copyOf(stateIDs, numStates);
+		lattice.stateScores = Arrays.copyOf(stateScores, numStates);
+	}
+
+	/**
+	 * Returns exactly-sized copies of the IDs of all states added so far.
+	 */
+	public int [] toStateIDs() {
+		return Arrays.copyOf(stateIDs, numStates);
+	}
+}
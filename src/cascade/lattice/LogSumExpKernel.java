@@ -0,0 +1,138 @@
+package cascade.lattice;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * Log-sum-exp semiring: alpha and beta are the log partition functions of all partial paths ending
+ * at (starting from) each state, and the edge marginals are posterior probabilities.
+ *
+ * Each sum is shifted by its largest term, so it takes one exp per edge and one log per state.
+ * alphaArgs and betaArgs receive the edge contributing the largest term.
+ */
+public final class LogSumExpKernel extends SemiringKernel {
+
+	private double [] terms = new double[16];
+
+	@Override
+	protected void combine(Lattice lattice, int idx, int [] adjIdx, int lo, int n, int [] otherEnds, boolean forward) {
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		terms = ArrayUtil.ensureCapacity(terms, n);
+
+		double max = Double.NEGATIVE_INFINITY;
+		int argmax = -1;
+
+		for (int j = 0; j < n; j++) {
+
+			int edgeIdx = adjIdx[lo+j];
+			int other = otherEnds[edgeIdx];
+
+			double val = edgeScores[edgeIdx];
+			if (other != Lattice.NULL_IDX)
+				val += vals[other];
+
+			terms[j] = val;
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, n, max, argmax, forward);
+	}
+
+	@Override
+	protected void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward) {
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		terms = ArrayUtil.ensureCapacity(terms, n);
+
+		double max = Double.NEGATIVE_INFINITY;
+		int argmax = -1;
+
+		for (int j = 0, edgeIdx = first; j < n; j++, edgeIdx += stride) {
+
+			double val = edgeScores[edgeIdx] + vals[other+j];
+
+			terms[j] = val;
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, n, max, argmax, forward);
+	}
+
+	private void store(int idx, int n, double max, int argmax, boolean forward) {
+
+		if (argmax == -1)
+			throw new RuntimeException("computing " + (forward ? "Alpha" : "Beta") + " failed: state has no path with finite score");
+
+		if (forward) {
+			alphaVals[idx] = logSumExp(terms, n, max);
+			alphaArgs[idx] = argmax;
+		} else {
+			betaVals[idx] = logSumExp(terms, n, max);
+			betaArgs[idx] = argmax;
+		}
+	}
+
+	/**
+	 * Log partition function of the lattice, after forward().
+	 */
+	public double getLogZ(Lattice lattice) {
+
+		// over the edges into the final null state
+		int start = lattice.getEdgeOffset(lattice.length());
+		int end = lattice.getEdgeOffset(lattice.length()+1);
+		int n = end - start;
+
+		terms = ArrayUtil.ensureCapacity(terms, n);
+		double max = Double.NEGATIVE_INFINITY;
+		for (int j = 0; j < n; j++) {
+			terms[j] = lattice.edgeScores[start+j] + alphaVals[lattice.getLeftStateIdx(start+j)];
+			max = Math.max(max, terms[j]);
+		}
+
+		return logSumExp(terms, n, max);
+	}
+
+	/**
+	 * Computes the posterior probability of each edge.
+	 */
+	@Override
+	public void computeEdgeMarginals(Lattice lattice, double[] marginalVals) {
+
+		double logZ = getLogZ(lattice);
+
+		int N = lattice.getNumEdges();
+		for (int edgeIdx = 0; edgeIdx < N; edgeIdx++) {
+
+			int leftIdx = lattice.getLeftStateIdx(edgeIdx);
+			int rightIdx = lattice.getRightStateIdx(edgeIdx);
+
+			double val = lattice.edgeScores[edgeIdx] - logZ;
+			if (leftIdx != Lattice.NULL_IDX)
+				val += alphaVals[leftIdx];
+			if (rightIdx != Lattice.NULL_IDX)
+				val += betaVals[rightIdx];
+
+			marginalVals[edgeIdx] = Math.exp(val);
+		}
+	}
+
+	/**
+	 * log(sum(exp(vals[0..n-1]))), given the largest value.
+	 */
+	static double logSumExp(double [] vals, int n, double max) {
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += Math.exp(vals[i] - max);
+		return max + Math.log(sum);
+	}
+}
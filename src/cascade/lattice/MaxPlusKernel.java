@@ -0,0 +1,104 @@
+package cascade.lattice;
+
+/**
+ * Max-plus (Viterbi) semiring: alpha and beta are the scores of the best partial paths, and the edge
+ * marginals are max-marginals, i.e. the score of the best complete path through each edge.
+ *
+ * Not final only so that VectorMaxPlusKernel (built separately, see ViterbiMaxSum.useVectorKernel)
+ * can replace combineDense.
+ */
+public class MaxPlusKernel extends SemiringKernel {
+
+	@Override
+	protected void combine(Lattice lattice, int idx, int [] adjIdx, int lo, int n, int [] otherEnds, boolean forward) {
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		double max = Double.NEGATIVE_INFINITY;
+		int argmax = -1;
+
+		for (int j = lo; j < lo+n; j++) {
+
+			int edgeIdx = adjIdx[j];
+			int other = otherEnds[edgeIdx];
+
+			double val = edgeScores[edgeIdx];
+			if (other != Lattice.NULL_IDX)
+				val += vals[other];
+
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, max, argmax, forward);
+	}
+
+	@Override
+	protected void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward) {
+
+		final double [] edgeScores = lattice.edgeScores;
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		double max = Double.NEGATIVE_INFINITY;
+		int argmax = -1;
+
+		for (int j = 0, edgeIdx = first; j < n; j++, edgeIdx += stride) {
+
+			double val = edgeScores[edgeIdx] + vals[other+j];
+
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, max, argmax, forward);
+	}
+
+	final void store(int idx, double max, int argmax, boolean forward) {
+
+		if (argmax == -1)
+			throw new RuntimeException(forward ? "computing Alpha failed: invalid argmax" : "computing Beta failed: invalid argmax");
+
+		if (forward) {
+			alphaVals[idx] = max;
+			alphaArgs[idx] = argmax;
+		} else {
+			betaVals[idx] = max;
+			betaArgs[idx] = argmax;
+		}
+	}
+
+	@Override
+	public void computeEdgeMarginals(Lattice lattice, double[] marginalVals) {
+		computeMaxMarginals(lattice, alphaVals, betaVals, 1, 0, lattice.getNumEdges(), marginalVals);
+	}
+
+	/**
+	 * Computes the max-marginals of the edges start ... end-1 from the best alpha and beta of each
+	 * state, which is at idx*width. betaVals is not used for edges into the final null state.
+	 */
+	static void computeMaxMarginals(Lattice lattice, double [] alphaVals, double [] betaVals, int width,
+			int start, int end, double[] marginalVals) {
+
+		for (int idx = start; idx < end; idx++) {
+
+			int leftIdx = lattice.getLeftStateIdx(idx);
+			int rightIdx = lattice.getRightStateIdx(idx);
+
+			double val = 0;
+
+			if (leftIdx != Lattice.NULL_IDX)
+				val += alphaVals[leftIdx*width];
+			if (rightIdx != Lattice.NULL_IDX)
+				val += betaVals[rightIdx*width];
+
+			val += lattice.edgeScores[idx];
+
+			marginalVals[idx] = val;
+		}
+	}
+}
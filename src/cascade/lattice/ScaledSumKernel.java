@@ -0,0 +1,150 @@
+package cascade.lattice;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * Sum-product semiring in scaled linear space: alpha and beta are the partition functions of all
+ * partial paths ending at (starting from) each state, scaled to a maximum of 1 at each position, and
+ * the edge marginals are posterior probabilities.
+ *
+ * Edge potentials are shifted by the largest edge score at their position, which takes one exp per
+ * edge and no logs at all. Partial paths scoring below about exp(-700) times the best at their
+ * position underflow to zero. alphaArgs and betaArgs receive the edge contributing the largest term.
+ */
+public final class ScaledSumKernel extends SemiringKernel {
+
+	// exp(edge score - max edge score at its position), computed before the forward recursion
+	private double [] potentials = null;
+
+	@Override
+	protected void beginForward(Lattice lattice) {
+
+		potentials = ArrayUtil.ensureCapacity(potentials, lattice.getNumEdges());
+
+		for (int pos = 0; pos <= lattice.length(); pos++) {
+
+			int start = lattice.getEdgeOffset(pos);
+			int end = lattice.getEdgeOffset(pos+1);
+
+			double max = Double.NEGATIVE_INFINITY;
+			for (int edgeIdx = start; edgeIdx < end; edgeIdx++)
+				if (lattice.edgeScores[edgeIdx] > max)
+					max = lattice.edgeScores[edgeIdx];
+
+			for (int edgeIdx = start; edgeIdx < end; edgeIdx++)
+				potentials[edgeIdx] = Math.exp(lattice.edgeScores[edgeIdx] - max);
+		}
+	}
+
+	@Override
+	protected void combine(Lattice lattice, int idx, int [] adjIdx, int lo, int n, int [] otherEnds, boolean forward) {
+
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		double sum = 0, max = 0;
+		int argmax = -1;
+
+		for (int j = lo; j < lo+n; j++) {
+
+			int edgeIdx = adjIdx[j];
+			int other = otherEnds[edgeIdx];
+
+			double val = potentials[edgeIdx];
+			if (other != Lattice.NULL_IDX)
+				val *= vals[other];
+
+			sum += val;
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, sum, argmax, forward);
+	}
+
+	@Override
+	protected void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward) {
+
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		double sum = 0, max = 0;
+		int argmax = -1;
+
+		for (int j = 0, edgeIdx = first; j < n; j++, edgeIdx += stride) {
+
+			double val = potentials[edgeIdx] * vals[other+j];
+
+			sum += val;
+			if (val > max) {
+				argmax = edgeIdx;
+				max = val;
+			}
+		}
+
+		store(idx, sum, argmax, forward);
+	}
+
+	private void store(int idx, double sum, int argmax, boolean forward) {
+
+		if (argmax == -1)
+			throw new RuntimeException("computing " + (forward ? "Alpha" : "Beta") + " failed: state has no path with finite score");
+
+		if (forward) {
+			alphaVals[idx] = sum;
+			alphaArgs[idx] = argmax;
+		} else {
+			betaVals[idx] = sum;
+			betaArgs[idx] = argmax;
+		}
+	}
+
+	/**
+	 * Scales the values of one position to a maximum of 1.
+	 */
+	@Override
+	protected void endPosition(Lattice lattice, int start, int end, boolean forward) {
+
+		final double [] vals = forward ? alphaVals : betaVals;
+
+		double max = 0;
+		for (int i = start; i < end; i++)
+			if (vals[i] > max)
+				max = vals[i];
+		for (int i = start; i < end; i++)
+			vals[i] /= max;
+	}
+
+	/**
+	 * Computes the posterior probability of each edge. Every path goes through exactly one edge at
+	 * each position, so the scaled values only need to be normalized per position.
+	 */
+	@Override
+	public void computeEdgeMarginals(Lattice lattice, double[] marginalVals) {
+
+		for (int pos = 0; pos <= lattice.length(); pos++) {
+
+			int start = lattice.getEdgeOffset(pos);
+			int end = lattice.getEdgeOffset(pos+1);
+
+			double sum = 0;
+			for (int edgeIdx = start; edgeIdx < end; edgeIdx++) {
+
+				int leftIdx = lattice.getLeftStateIdx(edgeIdx);
+				int rightIdx = lattice.getRightStateIdx(edgeIdx);
+
+				double val = potentials[edgeIdx];
+				if (leftIdx != Lattice.NULL_IDX)
+					val *= alphaVals[leftIdx];
+				if (rightIdx != Lattice.NULL_IDX)
+					val *= betaVals[rightIdx];
+
+				marginalVals[edgeIdx] = val;
+				sum += val;
+			}
+
+			for (int edgeIdx = start; edgeIdx < end; edgeIdx++)
+				marginalVals[edgeIdx] /= sum;
+		}
+	}
+}
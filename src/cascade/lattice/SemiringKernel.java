@@ -0,0 +1,148 @@
+package cascade.lattice;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * The forward and backward recursions over a lattice, for a given semiring.
+ *
+ * This class only traverses the lattice: for every state it finds the edges coming into it
+ * (forward) or leaving it (backward) and hands them to combine(), which computes the semiring sum
+ * over those edges of the product of the edge score and the value of the state at the other end.
+ * States in dense edge blocks (see Lattice.isDenseEdgeBlock) go to combineDense() instead, which
+ * computes the same sum over a range of edges and a range of other states, without going through
+ * the adjacency lists. Edges are always visited in ascending order, so ties are broken the same way
+ * everywhere.
+ *
+ * Each semiring has its own subclass, so that the per-edge loops in combine() and combineDense()
+ * are specialized and see only one implementation; they are called once per state. Kernels keep
+ * scratch buffers and are not thread safe.
+ */
+public abstract class SemiringKernel {
+
+	/**
+	 * Forward (alpha) and backward (beta) values of each state, and the edge chosen for each state
+	 * where the semiring makes a choice. Kernels with several values per state (see getWidth) store
+	 * the values of state idx at idx*getWidth() ... (idx+1)*getWidth()-1.
+	 */
+	public double [] alphaVals, betaVals;
+	public int [] alphaArgs, betaArgs;
+
+	/**
+	 * Computes the semiring sum for state idx over the n edges adjIdx[lo] ... adjIdx[lo+n-1] and
+	 * stores it in alphaVals (forward) or betaVals (backward). The state at the other end of edge
+	 * edgeIdx is otherEnds[edgeIdx], which may be NULL_IDX.
+	 */
+	protected abstract void combine(Lattice lattice, int idx, int [] adjIdx, int lo, int n, int [] otherEnds, boolean forward);
+
+	/**
+	 * Same as combine, for a state whose n edges are first, first+stride, ..., first+(n-1)*stride,
+	 * and whose j'th edge has the state other+j at its other end (never NULL_IDX).
+	 */
+	protected abstract void combineDense(Lattice lattice, int idx, int first, int stride, int other, int n, boolean forward);
+
+	/**
+	 * Computes a value for each edge from the forward and backward values (e.g. max-marginals or
+	 * posteriors).
+	 */
+	public abstract void computeEdgeMarginals(Lattice lattice, double [] marginalVals);
+
+	/**
+	 * Number of values per state.
+	 */
+	public int getWidth() {
+		return 1;
+	}
+
+	/**
+	 * Called before the forward recursion.
+	 */
+	protected void beginForward(Lattice lattice) {
+	}
+
+	/**
+	 * Called once all states in start ... end-1 (the states of one position) have been combined.
+	 */
+	protected void endPosition(Lattice lattice, int start, int end, boolean forward) {
+	}
+
+	/**
+	 * Allocates the value arrays if they are missing or too small for lattice.
+	 */
+	public void ensureCapacity(Lattice lattice) {
+		int n = lattice.getNumStates() * getWidth();
+		alphaVals = ArrayUtil.ensureCapacity(alphaVals, n);
+		betaVals = ArrayUtil.ensureCapacity(betaVals, n);
+		alphaArgs = ArrayUtil.ensureCapacity(alphaArgs, n);
+		betaArgs = ArrayUtil.ensureCapacity(betaArgs, n);
+	}
+
+	/**
+	 * Computes alphaVals (and alphaArgs) for every state, in position order.
+	 */
+	public final void forward(Lattice lattice) {
+
+		beginForward(lattice);
+
+		for (int pos = 0; pos < lattice.length(); pos++) {
+
+			int start = lattice.getStateOffset(pos);
+			int end = lattice.getStateOffset(pos+1);
+
+			if (lattice.isDenseEdgeBlock(pos)) {
+
+				int prevStart = lattice.getStateOffset(pos-1);
+				int P = start - prevStart;
+
+				int row = lattice.getEdgeOffset(pos);
+				for (int idx = start; idx < end; idx++, row += P)
+					combineDense(lattice, idx, row, 1, prevStart, P, true);
+
+			} else {
+
+				for (int idx = start; idx < end; idx++) {
+
+					int lo = lattice.leftEdgeOffsets[idx];
+					int n = lattice.leftEdgeOffsets[idx+1] - lo;
+
+					combine(lattice, idx, lattice.leftEdgeIdx, lo, n, lattice.edgeLeftStates, true);
+				}
+			}
+
+			endPosition(lattice, start, end, true);
+		}
+	}
+
+	/**
+	 * Computes betaVals (and betaArgs) for every state, in reverse position order.
+	 */
+	public final void backward(Lattice lattice) {
+
+		for (int pos = lattice.length()-1; pos >= 0; pos--) {
+
+			int start = lattice.getStateOffset(pos);
+			int end = lattice.getStateOffset(pos+1);
+
+			if (lattice.isDenseEdgeBlock(pos+1)) {
+
+				int P = end - start;
+				int S = lattice.getStateOffset(pos+2) - end;
+
+				int col = lattice.getEdgeOffset(pos+1);
+				for (int idx = start; idx < end; idx++, col++)
+					combineDense(lattice, idx, col, P, end, S, false);
+
+			} else {
+
+				for (int idx = start; idx < end; idx++) {
+
+					int lo = lattice.rightEdgeOffsets[idx];
+					int n = lattice.rightEdgeOffsets[idx+1] - lo;
+
+					combine(lattice, idx, lattice.rightEdgeIdx, lo, n, lattice.edgeRightStates, false);
+				}
+			}
+
+			endPosition(lattice, start, end, false);
+		}
+	}
+}
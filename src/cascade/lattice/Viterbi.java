@@ -46,4 +46,30 @@ public abstract class Viterbi {
 	 * to store results. see computeAlpha.
 	 */
 	public abstract void computeBeta(Lattice lattice, double betaVals[], int [] betaArgs);
+	
+	/**
+	 * Computes the marginals of the final edges only (those at position length), which is
+	 * enough to find the argmax path, from the forward pass alone. The other entries of 
+	 * marginalVals are left unchanged. 
+	 * 
+	 * Default: not possible, returns false without computing anything.
+	 * 
+	 * @return
+	 * whether the marginals were computed
+	 */
+	public boolean computeFinalEdgeMarginals(Lattice lattice, double [] alphaVals, double [] marginalVals) {
+		return false;
+	}
+	
+	/**
+	 * Max-sum marginals of the final edges, as computeEdgeMarginals computes them: the best 
+	 * score of the paths through them is the alpha of their left state plus their own score.
+	 */
+	protected static void computeMaxSumFinalEdgeMarginals(Lattice lattice, double [] alphaVals, double [] marginalVals) {
+		
+		int start = lattice.getEdgeOffset(lattice.length());
+		int end = lattice.getEdgeOffset(lattice.length()+1);
+		
+		MaxPlusKernel.computeMaxMarginals(lattice, alphaVals, null, 1, start, end, marginalVals);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,231 @@
+package cascade.lattice;
+
+import cascade.util.ArrayUtil;
+
+/**
+ * Max-sum inference that also keeps the K best partial paths ending at (starting from) each state,
+ * see KBestKernel. computeAlpha, computeBeta and computeEdgeMarginals give exactly the same results
+ * as ViterbiMaxSum, so the model can use this class wherever it uses ViterbiMaxSum; in addition,
+ * after computeAlpha the K best complete paths can be extracted (getTopPaths, markTopPathEdges), and
+ * after computeBeta the K'th best max-marginal of each edge can be computed.
+ */
+public class ViterbiKBest extends Viterbi {
+
+	/**
+	 * Number of best paths to keep.
+	 */
+	public int K = 1;
+
+	private final KBestKernel kernel = new KBestKernel();
+
+	// next rank to take from each final edge, and from each list when merging two lists
+	private int [] heads = new int[16];
+
+	public ViterbiKBest() {
+	}
+
+	public ViterbiKBest(int K) {
+		this.K = K;
+	}
+
+	@Override
+	public void computeAlpha(Lattice lattice, double[] alphaVals, int[] alphaArgs) {
+
+		kernel.K = K;
+		kernel.ensureCapacity(lattice);
+		kernel.forward(lattice);
+
+		int N = lattice.getNumStates();
+		for (int idx = 0; idx < N; idx++) {
+			alphaVals[idx] = kernel.alphaVals[idx*K];
+			alphaArgs[idx] = kernel.alphaArgs[idx*K];
+		}
+	}
+
+	@Override
+	public void computeBeta(Lattice lattice, double[] betaVals, int[] betaArgs) {
+
+		kernel.backward(lattice);
+
+		int N = lattice.getNumStates();
+		for (int idx = 0; idx < N; idx++) {
+			betaVals[idx] = kernel.betaVals[idx*K];
+			betaArgs[idx] = kernel.betaArgs[idx*K];
+		}
+	}
+
+	@Override
+	public void computeEdgeMarginals(Lattice lattice, double[] alphaVals,
+			double[] betaVals, double[] marginalVals) {
+		kernel.computeEdgeMarginals(lattice, marginalVals);
+	}
+
+	@Override
+	public boolean computeFinalEdgeMarginals(Lattice lattice, double[] alphaVals, double[] marginalVals) {
+		computeMaxSumFinalEdgeMarginals(lattice, alphaVals, marginalVals);
+		return true;
+	}
+
+	/**
+	 * Computes the score of the K'th best complete path through each edge, or -infinity if there
+	 * are fewer than K paths through it. Requires computeAlpha and computeBeta.
+	 */
+	public void computeKthBestMarginals(Lattice lattice, double[] marginalVals) {
+
+		final double [] alphaVals = kernel.alphaVals;
+		final double [] betaVals = kernel.betaVals;
+
+		int N = lattice.getNumEdges();
+		for (int edgeIdx = 0; edgeIdx < N; edgeIdx++) {
+
+			int leftIdx = lattice.getLeftStateIdx(edgeIdx);
+			int rightIdx = lattice.getRightStateIdx(edgeIdx);
+
+			double val;
+			if (leftIdx == Lattice.NULL_IDX)
+				val = (rightIdx == Lattice.NULL_IDX) ? Double.NEGATIVE_INFINITY : betaVals[rightIdx*K + K-1];
+			else if (rightIdx == Lattice.NULL_IDX)
+				val = alphaVals[leftIdx*K + K-1];
+			else
+				val = kthBestSum(alphaVals, leftIdx*K, betaVals, rightIdx*K);
+
+			marginalVals[edgeIdx] = val + lattice.edgeScores[edgeIdx];
+		}
+	}
+
+	/**
+	 * The K'th largest sum a[aOff+i] + b[bOff+j] of two lists of K values in decreasing order.
+	 */
+	private double kthBestSum(double [] a, int aOff, double [] b, int bOff) {
+
+		// heads[i]: next element of b to pair with a[aOff+i]; only i <= r can hold the r'th best
+		heads = ArrayUtil.ensureCapacity(heads, K);
+		for (int i = 0; i < K; i++)
+			heads[i] = 0;
+
+		double max = Double.NEGATIVE_INFINITY;
+		for (int r = 0; r < K; r++) {
+
+			max = Double.NEGATIVE_INFINITY;
+			int argmax = -1;
+			for (int i = 0; i <= r; i++) {
+				if (heads[i] == K)
+					continue;
+				double val = a[aOff+i] + b[bOff+heads[i]];
+				if (val > max) {
+					max = val;
+					argmax = i;
+				}
+			}
+			if (argmax == -1)
+				return Double.NEGATIVE_INFINITY;
+			heads[argmax]++;
+		}
+		return max;
+	}
+
+	/**
+	 * Extracts the K best complete paths, best first, as the edge indices along each path including
+	 * the final edge. Fewer than K paths are returned if the lattice has fewer. Requires computeAlpha.
+	 */
+	public int[][] getTopPaths(Lattice lattice) {
+
+		int length = lattice.length();
+		int [][] paths = new int[K][];
+		int n = 0;
+
+		int start = lattice.getEdgeOffset(length);
+		int end = lattice.getEdgeOffset(length+1);
+
+		for (int r = 0; r < K; r++) {
+
+			int edgeIdx = nextFinalEdge(lattice, start, end, r);
+			if (edgeIdx == -1)
+				break;
+
+			int [] path = paths[n++] = new int[length+1];
+			path[length] = edgeIdx;
+
+			int rank = heads[edgeIdx-start]-1;
+			for (int pos = length-1; pos >= 0; pos--) {
+				int k = lattice.getLeftStateIdx(path[pos+1])*K + rank;
+				path[pos] = kernel.alphaArgs[k];
+				rank = kernel.alphaRanks[k];
+			}
+		}
+
+		if (n < K) {
+			int [][] result = new int[n][];
+			System.arraycopy(paths, 0, result, 0, n);
+			return result;
+		}
+		return paths;
+	}
+
+	/**
+	 * Sets mask[idx] to true for every edge on one of the k best complete paths (k <= K), leaving the
+	 * other entries unchanged. Unlike getTopPaths, allocates nothing. Requires computeAlpha.
+	 *
+	 * @return the number of paths found
+	 */
+	public int markTopPathEdges(Lattice lattice, int k, boolean [] mask) {
+
+		if (k > K)
+			throw new IllegalArgumentException("only the " + K + " best paths are kept, not " + k);
+
+		int length = lattice.length();
+		int start = lattice.getEdgeOffset(length);
+		int end = lattice.getEdgeOffset(length+1);
+
+		int r = 0;
+		for (; r < k; r++) {
+
+			int edgeIdx = nextFinalEdge(lattice, start, end, r);
+			if (edgeIdx == -1)
+				break;
+
+			int rank = heads[edgeIdx-start]-1;
+			for (int pos = length; pos > 0; pos--) {
+				mask[edgeIdx] = true;
+				int idx = lattice.getLeftStateIdx(edgeIdx)*K + rank;
+				edgeIdx = kernel.alphaArgs[idx];
+				rank = kernel.alphaRanks[idx];
+			}
+			mask[edgeIdx] = true;
+		}
+		return r;
+	}
+
+	/**
+	 * The final edge of the r'th best complete path, merging the alpha lists of the states before
+	 * the final edges start ... end-1 (as KBestKernel does for a state); heads[edgeIdx-start]-1 is then
+	 * the rank of the path in the list of its last state. Must be called for r = 0, 1, ... in turn.
+	 */
+	private int nextFinalEdge(Lattice lattice, int start, int end, int r) {
+
+		int n = end - start;
+		if (r == 0) {
+			heads = ArrayUtil.ensureCapacity(heads, n);
+			for (int j = 0; j < n; j++)
+				heads[j] = 0;
+		}
+
+		double max = Double.NEGATIVE_INFINITY;
+		int argmax = -1;
+		for (int j = 0; j < n; j++) {
+			if (heads[j] == K)
+				continue;
+			int edgeIdx = start + j;
+			double val = lattice.edgeScores[edgeIdx] + kernel.alphaVals[lattice.getLeftStateIdx(edgeIdx)*K + heads[j]];
+			if (val > max) {
+				max = val;
+				argmax = j;
+			}
+		}
+		if (argmax == -1)
+			return -1;
+
+		heads[argmax]++;
+		return start + argmax;
+	}
+}
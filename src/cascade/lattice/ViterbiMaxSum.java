@@ -6,125 +6,75 @@ import cascade.features.FeatureVector;
 import cascade.io.Sequence;
 
 
+/**
+ * Max-sum (Viterbi) inference; the recursions are done by a MaxPlusKernel.
+ */
 public class ViterbiMaxSum extends Viterbi {
 
+	/**
+	 * Use the SIMD kernel (VectorMaxPlusKernel) for dense edge blocks when it has been built (ant
+	 * build-vector) and the JVM was started with --add-modules jdk.incubator.vector; otherwise, or if
+	 * false, the scalar MaxPlusKernel is used. The results are identical.
+	 */
+	public boolean useVectorKernel = true;
 
-	@Override
-	public void computeAlpha(Lattice lattice, double[] alphaVals,int[] alphaArgs) {
-
-		for (int pos = 0; pos < lattice.length(); pos++) {
-			
-			int start = lattice.getStateOffset(pos);
-			int end = lattice.getStateOffset(pos+1);
-
-			for (int idx = start; idx < end; idx++) {
-					
-				// compute max over transitions for this state: max stores LINEAR indexing
-				double max = Double.NEGATIVE_INFINITY;
-				int argmax = -1;
+	private static final String VECTOR_KERNEL = "cascade.lattice.VectorMaxPlusKernel";
 
-				for (int edgeIdx : lattice.getLeftEdges(pos, idx-start)) {
-					
-					int leftIdx = lattice.getLeftStateIdx(edgeIdx);
+	private MaxPlusKernel kernel = null;
 
-					double val = lattice.edgeScores[edgeIdx];
-					//System.out.printf("%d: val = %g\n", idx, val);
-
-//					if (lattice.stateScores != null)
-//						val += lattice.stateScores[idx];					
+	private MaxPlusKernel getKernel() {
+		if (kernel == null) {
+			if (useVectorKernel)
+				kernel = loadVectorKernel();
+			if (kernel == null)
+				kernel = new MaxPlusKernel();
+		}
+		return kernel;
+	}
 
-					//System.out.printf("%d: val = %g\n", idx, val);
-					// if not the start state, accumulate value in alpha table
-					if (leftIdx != Lattice.NULL_IDX)
-						val += alphaVals[leftIdx];
-					
-					//System.out.printf("%d: val = %g\n", idx, val);
-					if (val > max) {
-						argmax = edgeIdx;
-						max = val;
-						
-						//System.out.printf("%d: maxval = %g\n", idx, max);
-					}					
-					
-				}
-				if (argmax == -1)
-					throw new RuntimeException("computing Alpha failed: invalid argmax");
+	/**
+	 * The vector kernel, or null if it is not on the class path or the Vector API is missing.
+	 */
+	private static MaxPlusKernel loadVectorKernel() {
+		try {
+			return (MaxPlusKernel) Class.forName(VECTOR_KERNEL).newInstance();
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
 
-				// assign max, argmax for this state
-				alphaVals[idx] = max;
-				alphaArgs[idx] = argmax;
-			}
-		} // end loop over position	
+	@Override
+	public void computeAlpha(Lattice lattice, double[] alphaVals,int[] alphaArgs) {
+		MaxPlusKernel kernel = getKernel();
+		kernel.alphaVals = alphaVals;
+		kernel.alphaArgs = alphaArgs;
+		kernel.forward(lattice);
 	}
 
 	@Override
 	public void computeBeta(Lattice lattice, double[] betaVals, int[] betaArgs) {
-
-		
-		// initialize last rows to zero.
-		for (int pos = lattice.length()-1; pos >= 0; pos--) {
-			
-			int start = lattice.getStateOffset(pos);
-			int end = lattice.getStateOffset(pos+1);
-
-			for (int idx = start; idx < end; idx++) {
-				
-				// compute max over transitions for this state
-				double max = Double.NEGATIVE_INFINITY;
-				int argmax = -1;
-
-				for (int edgeIdx : lattice.getRightEdges(pos, idx-start)) {
-
-					// there can be no rightward transition to null, so don't check
-					int rightIdx = lattice.getRightStateIdx(edgeIdx);
-					
-					double val = lattice.edgeScores[edgeIdx];
-					
-					if (rightIdx != Lattice.NULL_IDX)
-						val += betaVals[rightIdx]; // + (lattice.stateScores != null ? lattice.stateScores[rightIdx] : 0);
-					
-					if (val > max) {
-						argmax = edgeIdx;
-						max = val;
-					}
-				}
-
-				if (argmax == -1)
-					throw new RuntimeException("computing Beta failed: invalid argmax");
-
-				// assign max, argmax for this state
-				betaVals[idx] = max;
-				betaArgs[idx] = argmax;
-			}
-		} // end loop over position	
+		MaxPlusKernel kernel = getKernel();
+		kernel.betaVals = betaVals;
+		kernel.betaArgs = betaArgs;
+		kernel.backward(lattice);
 	}
-
+	
 	@Override
 	public void computeEdgeMarginals(Lattice lattice, double[] alphaVals,
 			double[] betaVals, double[] marginalVals) {
-		int N = lattice.getNumEdges();
+		MaxPlusKernel kernel = getKernel();
+		kernel.alphaVals = alphaVals;
+		kernel.betaVals = betaVals;
+		kernel.computeEdgeMarginals(lattice, marginalVals);
+	}
 	
-		for (int idx = 0; idx < N; idx++) { 
-
-			int leftIdx = lattice.getLeftStateIdx(idx);
-			int rightIdx = lattice.getRightStateIdx(idx);
-			
-			double val = 0;
-			
-			if (leftIdx != Lattice.NULL_IDX)
-				val += alphaVals[leftIdx];
-			if (rightIdx != Lattice.NULL_IDX) 
-				val += betaVals[rightIdx];
-				//(lattice.stateScores != null ? lattice.stateScores[rightIdx] : 0);
-			
-			
-			val += lattice.edgeScores[idx];
-			
-			marginalVals[idx] = val;
-			
-		}
+	@Override
+	public boolean computeFinalEdgeMarginals(Lattice lattice, double[] alphaVals, double[] marginalVals) {
+		computeMaxSumFinalEdgeMarginals(lattice, alphaVals, marginalVals);
+		return true;
 	}
 	
 		
 }
-
@@ -1,115 +1,55 @@
 package cascade.lattice;
 
 import cascade.io.Sequence;
-import cascade.util.MathUtil;
 
+/**
+ * Sum-product (forward-backward) inference. alphaVals and betaVals are the log partition functions 
+ * of all partial paths ending at (starting from) each state, and computeEdgeMarginals computes the 
+ * posterior probability of each edge. Posteriors can be thresholded directly, see 
+ * NOrderPOS.useAlphaAsThreshold.
+ * 
+ * The recursions are done by a LogSumExpKernel, or with useScaling by a ScaledSumKernel, which 
+ * keeps alpha and beta in linear space, scaled to a maximum of 1 at each position. 
+ */
 public class ViterbiSumProduct extends Viterbi {
 
+	/**
+	 * Run the recursions in scaled linear space (see ScaledSumKernel). alphaVals and betaVals then 
+	 * hold scaled probabilities rather than log values.
+	 */
+	public boolean useScaling = false;
+	
+	private SemiringKernel kernel = null;
+	
+	private SemiringKernel getKernel() {
+		if (kernel == null)
+			kernel = useScaling ? new ScaledSumKernel() : new LogSumExpKernel();
+		return kernel;
+	}
+
 	@Override
 	public void computeAlpha(Lattice lattice, double[] alphaVals, int[] alphaArgs) {
-		
-		for (int pos = 0; pos < lattice.length(); pos++) {
-			
-			int start = lattice.getStateOffset(pos);
-			int end = lattice.getStateOffset(pos+1);
-			
-			for (int idx = start; idx < end; idx++) {
-					
-				double sum = -1;
-				for (int edgeIdx : lattice.getLeftEdges(pos, idx-start)) {
-					
-					int leftIdx = lattice.getLeftStateIdx(edgeIdx);
-
-					double val = lattice.edgeScores[edgeIdx];
-					if (lattice.stateScores != null)
-						val += lattice.stateScores[idx];					
-
-					// if not the start state, accumulate value in alpha table
-					if (leftIdx != Lattice.NULL_IDX)
-						val += alphaVals[leftIdx];
-
-					sum = (sum < 0) ? val : MathUtil.logsumexp(sum, val);
-				}
-				
-				
-				alphaVals[idx] = sum;
-			}
-		} // end loop over position	
+		SemiringKernel kernel = getKernel();
+		kernel.alphaVals = alphaVals;
+		kernel.alphaArgs = alphaArgs;
+		kernel.forward(lattice);
 	}
 
 	@Override
 	public void computeBeta(Lattice lattice, double[] betaVals, int[] betaArgs) {
-			
-		// initialize last rows to zero.
-		for (int pos = lattice.length()-1; pos >= 0; pos--) {
-			
-			int start = lattice.getStateOffset(pos);
-			int end = lattice.getStateOffset(pos+1);
-
-			for (int idx = start; idx < end; idx++) {
-			
-				double sum = -1;
-				for (int edgeIdx : lattice.getRightEdges(pos, idx-start)) {
-
-					// there can be no rightward transition to null, so don't check
-					int rightIdx = lattice.getRightStateIdx(edgeIdx);
-					
-					double val = lattice.edgeScores[edgeIdx];
-					
-					if (rightIdx != Lattice.NULL_IDX)
-						val += betaVals[rightIdx] + (lattice.stateScores != null ? lattice.stateScores[rightIdx] : 0);
-				
-					sum = (sum < 0) ? val : MathUtil.logsumexp(sum, val);
-				}
-
-				
-				betaVals[idx] = sum;
-			}
-		}
+		SemiringKernel kernel = getKernel();
+		kernel.betaVals = betaVals;
+		kernel.betaArgs = betaArgs;
+		kernel.backward(lattice);
 	}
 
 	@Override
 	public void computeEdgeMarginals(Lattice lattice, double[] alphaVals,
 			double[] betaVals, double[] marginalVals) {
-		
-		// compute partition function:
-		int start = lattice.getStateOffset(lattice.length-1);
-		int end = lattice.getStateOffset(lattice.length);
-		
-		double logZ = alphaVals[start];
-		for (int idx = (start+1); idx < end; idx++) 
-			logZ = MathUtil.logsumexp(logZ, alphaVals[idx]);
-
-		// compute edge marginals:
-		
-		for (int pos = 0; pos <= lattice.length(); pos++) {
-	
-			start = lattice.getEdgeOffset(pos);
-			end = lattice.getEdgeOffset(pos+1);
-
-			double sumProb = 0;
-			for (int edgeIdx = start; edgeIdx < end; edgeIdx++) {
-				int leftIdx = lattice.getLeftStateIdx(edgeIdx);
-				int rightIdx = lattice.getRightStateIdx(edgeIdx);
-				
-				double val = 0;
-				
-				if (leftIdx != Lattice.NULL_IDX)
-					val += alphaVals[leftIdx];
-				if (rightIdx != Lattice.NULL_IDX) 
-					val += betaVals[rightIdx] +
-					(lattice.stateScores != null ? lattice.stateScores[rightIdx] : 0);
-				
-				val += lattice.edgeScores[edgeIdx];
-				
-				marginalVals[edgeIdx] = Math.exp(val - logZ);
-
-				sumProb += marginalVals[edgeIdx];
-			}
-			
-			System.out.println("sumProb: " + sumProb);
-		}
-
+		SemiringKernel kernel = getKernel();
+		kernel.alphaVals = alphaVals;
+		kernel.betaVals = betaVals;
+		kernel.computeEdgeMarginals(lattice, marginalVals);
 	}
 
 //	public ScoredLattice sumProductBackward(Weights weights, Sequence seq) {
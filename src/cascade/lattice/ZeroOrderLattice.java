@@ -1,12 +1,11 @@
 package cascade.lattice;
 
-import gnu.trove.TIntArrayList;
-
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Arrays;
 
+import cascade.features.FeatureVectorPool;
 import cascade.io.Sequence;
 import cascade.model.CascadeModel;
 import cascade.model.ZeroOrderModel;
@@ -23,8 +22,13 @@ public class ZeroOrderLattice extends Lattice {
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 4L;
+	private static final long serialVersionUID = 5L;
 	public static final long classID = 1;
+	
+	/**
+	 * Version of the uncompressed format, which is still readable. 
+	 */
+	private static final long legacySerialVersionUID = 4L;
 
 	/**
 	 * Whether or not the actual state IDs are stored (they aren't strictly necessary)
@@ -33,24 +37,67 @@ public class ZeroOrderLattice extends Lattice {
 	private int _nstates;
 	
 	public ZeroOrderLattice(DataInput in) throws IOException {
+		read(in, null);
+	}
+	
+	/**
+	 * For reading only; see Lattice.readLattice.
+	 */
+	ZeroOrderLattice() {}
+	
+	/**
+	 * Zero order lattices always store their feature vectors in full, so <b>pool</b> is ignored. 
+	 */
+	@Override
+	protected void read(DataInput in, FeatureVectorPool pool) throws IOException {
 
 		long id=in.readLong();
-		if (id!= serialVersionUID) throw new IOException("Wrong serial version, got "+id);
-		seqHash = in.readInt();
-		length = in.readInt();
-		_nstates = in.readInt();
-		storeStateIDs = in.readBoolean();
+		if (id != serialVersionUID && id != legacySerialVersionUID) 
+			throw new IOException("Wrong serial version, got "+id);
 		
-		statePosOffsets = ArrayUtil.readIntArray(in);
-		if (storeStateIDs)
-			stateIDs = ArrayUtil.readIntArray(in);
-		fv = ArrayUtil.readFeatureVectorArray(in);
-		fvPos = ArrayUtil.readFeatureVectorArray(in);
-		fvState = ArrayUtil.readFeatureVectorArray(in);
+		seq = null;
+		model = null;
+		featuresPending = false;
+		
+		if (id == serialVersionUID) {
+			seqHash = in.readInt();
+			length = ArrayUtil.readVarInt(in);
+			_nstates = ArrayUtil.readVarInt(in);
+			storeStateIDs = in.readBoolean();
+			
+			statePosOffsets = readOffsets(in, statePosOffsets, length);
+			if (storeStateIDs) {
+				int nstates = statePosOffsets[length];
+				if (stateIDs == null || stateIDs.length < nstates)
+					stateIDs = new int[nstates];
+				for (int idx = 0; idx < nstates; idx++)
+					stateIDs[idx] = ArrayUtil.readVarInt(in);
+			} else
+				stateIDs = null;
+			fv = ArrayUtil.readFeatureVectorArrayCompact(in, fv);
+			fvPos = ArrayUtil.readFeatureVectorArrayCompact(in, fvPos);
+			fvState = ArrayUtil.readFeatureVectorArrayCompact(in, fvState);
+		} else {
+			seqHash = in.readInt();
+			length = in.readInt();
+			_nstates = in.readInt();
+			storeStateIDs = in.readBoolean();
+			
+			statePosOffsets = ArrayUtil.readIntArray(in, statePosOffsets);
+			if (storeStateIDs)
+				stateIDs = ArrayUtil.readIntArray(in, stateIDs);
+			else
+				stateIDs = null;
+			fv = ArrayUtil.readFeatureVectorArray(in, fv);
+			fvPos = ArrayUtil.readFeatureVectorArray(in, fvPos);
+			fvState = ArrayUtil.readFeatureVectorArray(in, fvState);
+		}
 		
 		// scores are never saved
 		stateScores = null;
 		edgeScores = null;
+		
+		invalidateIndices();
 	}
 	
 	public ZeroOrderLattice(Sequence seq, ZeroOrderModel m) {
@@ -66,25 +113,28 @@ public class ZeroOrderLattice extends Lattice {
 		edgePosOffsets = new int[length + 2]; // all edges offsets are zero because there are no edges
 		
 		leftEdgeIdx = null;
+		leftEdgeOffsets = null;
 		rightEdgeIdx = null;
+		rightEdgeOffsets = null;
 		edgeLeftStates = null;
 		edgeRightStates = null;
 
 		// we WILL be storing state IDs
 		storeStateIDs = true;
 		
-		TIntArrayList newStateIDs = new TIntArrayList();
+		LatticeBuilder builder = LatticeBuilder.get();
+		builder.reset();
 
 		for (int pos = 0; pos < length; pos++) {
 			int[] states = m.possibleStates(seq, pos);
 			for (int s = 0; s < states.length; s++)
 				if (mask[pos][s]) 
-					newStateIDs.add(s);
+					builder.addState(s, 0);
 			
-			statePosOffsets[pos+1] = newStateIDs.size();
+			statePosOffsets[pos+1] = builder.getNumStates();
 		}
 		
-		stateIDs = newStateIDs.toNativeArray();
+		stateIDs = builder.toStateIDs();
 	}
 
 	/**
@@ -102,7 +152,9 @@ public class ZeroOrderLattice extends Lattice {
 		edgePosOffsets = new int[length + 2]; // all edges offsets are zero because there are no edges
 		
 		leftEdgeIdx = null;
+		leftEdgeOffsets = null;
 		rightEdgeIdx = null;
+		rightEdgeOffsets = null;
 		edgeLeftStates = null;
 		edgeRightStates = null;
 
@@ -111,15 +163,17 @@ public class ZeroOrderLattice extends Lattice {
 		if (storeStateIDs) {
 
 			// store only VALID states at each position
-			TIntArrayList newStateIDs = new TIntArrayList();
+			LatticeBuilder builder = LatticeBuilder.get();
+			builder.reset();
 			for (int pos = 0; pos < length; pos++) {
 				int[] states = m.possibleStates(seq, pos);
 				
-				newStateIDs.add(states);
-				statePosOffsets[pos+1] = newStateIDs.size();
+				for (int s : states)
+					builder.addState(s, 0);
+				statePosOffsets[pos+1] = builder.getNumStates();
 			}
 			
-			stateIDs = newStateIDs.toNativeArray();
+			stateIDs = builder.toStateIDs();
 			
 		} else {
 			// # of states shoudl NOT change for a given position
@@ -142,6 +196,16 @@ public class ZeroOrderLattice extends Lattice {
 			return idx - ((idx/_nstates)*_nstates);
 	}
 
+	@Override
+	public int findStateIdx(int pos, int state) {
+		
+		// without stored IDs, every state is present at every position
+		if (!storeStateIDs)
+			return (state >= 0 && state < _nstates) ? statePosOffsets[pos] + state : NULL_IDX;
+		
+		return super.findStateIdx(pos, state);
+	}
+
 	@Override
 	public int[] getArgmaxStates(int[] alphaArgs, double[] edgeMarginalVals) {
 		// TODO Auto-generated method stub
@@ -150,31 +214,36 @@ public class ZeroOrderLattice extends Lattice {
 
 	@Override
 	public int findStatePosOffset(int idx) {
-		// TODO Auto-generated method stub
+		
+		if (!storeStateIDs && idx >= 0 && idx < statePosOffsets[length])
+			return idx/_nstates;
+		
 		return super.findStatePosOffset(idx);
 	}
 
 	@Override
-	public void write(DataOutput out) throws IOException {
+	public void write(DataOutput out, FeatureVectorPool pool) throws IOException {
 		out.writeLong(classID);
 		out.writeLong(serialVersionUID);
 		out.writeInt(seqHash);
-		out.writeInt(length);
-		out.writeInt(_nstates);
+		ArrayUtil.writeVarInt(out, length);
+		ArrayUtil.writeVarInt(out, _nstates);
 		out.writeBoolean(storeStateIDs);
 
-		ArrayUtil.writeIntArray(out, statePosOffsets);
+		// same compact encoding as Lattice.write
+		writeOffsets(out, statePosOffsets, length);
 		if (storeStateIDs)
-			ArrayUtil.writeIntArray(out, stateIDs);
+			for (int idx = 0; idx < getNumStates(); idx++)
+				ArrayUtil.writeVarInt(out, stateIDs[idx]);
 		
-		ArrayUtil.writeFeatureVectorArray(out,fv);
-		ArrayUtil.writeFeatureVectorArray(out,fvPos);
-		ArrayUtil.writeFeatureVectorArray(out,fvState);
+		ArrayUtil.writeFeatureVectorArrayCompact(out,fv);
+		ArrayUtil.writeFeatureVectorArrayCompact(out,fvPos);
+		ArrayUtil.writeFeatureVectorArrayCompact(out,fvState);
 	}
 	
 	public String fv2string(){
 		StringBuilder sb = new StringBuilder();
-		for (int pos = 0; pos < statePosOffsets.length -1; pos++) {
+		for (int pos = 0; pos < length; pos++) {
 			int start = statePosOffsets[pos];
 			int end = statePosOffsets[pos+1];
 			for (int stateIdx = start; stateIdx < end; stateIdx++) {
@@ -1,5 +1,7 @@
 package cascade.learn;
 
+import java.util.List;
+
 import cascade.io.SimpleLogger;
 
 /**
@@ -29,6 +31,14 @@ public class FilterTradeoffStatistics {
 
 	public double baselineErr, zeroBaselineErr, zeroBaselineEff;
 	
+	// Efficiency - error trade off curve over per-position caps (see CascadeModel.maxPerPosition), 
+	// or null if caps are not swept
+	public int caps[];
+	public double capEffs[], capErrs[], capZeroErrs[], capZeroEffs[];
+	
+	public int bestCap = -1;
+	public double bestCapEff, bestCapErr;
+	
 	public boolean useZeroError = false;
 	
 	public static final String [] writeFields = {"bestZeroErrUnderCap", "bestErrUnderCap", "bestZeroEffUnderCap", "bestEffUnderCap", 
@@ -51,6 +61,24 @@ public class FilterTradeoffStatistics {
 
 	}
 	
+	/**
+	 * Also sweeps the given per-position caps, if not null. 
+	 */
+	public FilterTradeoffStatistics(List<Integer> caps) {
+		this();
+		
+		if (caps != null) {
+			this.caps = new int[caps.size()];
+			for (int i = 0; i < this.caps.length; i++)
+				this.caps[i] = caps.get(i);
+			
+			capEffs = new double[this.caps.length];
+			capErrs = new double[this.caps.length];
+			capZeroErrs = new double[this.caps.length];
+			capZeroEffs = new double[this.caps.length];
+		}
+	}
+	
 	// Finds the best Alpha
 	public void findBestAlpha(double maxerr, double maxalpha) {
 
@@ -84,6 +112,25 @@ public class FilterTradeoffStatistics {
 		bestZeroEffUnderCap = this.zeroEffs[argmin];
 	}
 	
+	// Finds the most efficient cap under the error cap
+	public void findBestCap(double maxerr) {
+		
+		double [] errs = useZeroError ? this.capZeroErrs : this.capErrs;
+		
+		double min = Double.POSITIVE_INFINITY;
+		int argmin = 0;
+		for (int i = 0; i < capEffs.length; i++) {
+			if (capEffs[i] < min && errs[i] <= maxerr) {
+				min = capEffs[i];
+				argmin = i;
+			}
+		}
+		
+		bestCap = caps[argmin];
+		bestCapEff = capEffs[argmin];
+		bestCapErr = this.capErrs[argmin];
+	}
+	
 	public void saveTradeoffCurves(String fileName) {
 
 		SimpleLogger out = new SimpleLogger(fileName);
@@ -93,14 +140,22 @@ public class FilterTradeoffStatistics {
 			out.println(String.format("%.8g, %.8g, %.8g, %.8g, %.8g", alphas[i], effs[i]*100, errs[i]*100, zeroErrs[i]*100, zeroEffs[i]*100));
 		}
 		
+		if (caps != null) {
+			out.println("cap, effiencyLoss, filterLoss, zeroFilterLoss, zeroEffLoss");
+			for (int i = 0; i < caps.length; i++) {
+				out.println(String.format("%d, %.8g, %.8g, %.8g, %.8g", caps[i], capEffs[i]*100, capErrs[i]*100, capZeroErrs[i]*100, capZeroEffs[i]*100));
+			}
+		}
+		
 		
 	}
 	
 	public String summarize() {
+		String capSummary = (bestCap < 0) ? "" : String.format(", Cap: %d, Err: %.4f%%, Eff: %.4f%%", bestCap, bestCapErr, bestCapEff);
 		return String.format(
 						"\n\tAlpha: %.4f (max %.4f), Err: %.4f%% [+%.4f%%], ZErr: %.4f%% [+%.4f%%] (cap %.4f%%), Eff: %.4f%% (%.4f%% zero [-%.4f%%])",
 						bestAlpha, alphaCap, bestErrUnderCap , baselineErr, bestZeroErrUnderCap, 
-						zeroBaselineErr, cap, bestEffUnderCap , bestZeroEffUnderCap, zeroBaselineEff);
+						zeroBaselineErr, cap, bestEffUnderCap , bestZeroEffUnderCap, zeroBaselineEff) + capSummary;
 	}
 	
 	public void average() {
@@ -116,6 +171,15 @@ public class FilterTradeoffStatistics {
 			zeroEffs[i] = 100*(zeroEffs[i] / numSequences); // - zeroBaselineEff;
 		}
 		
+		if (caps != null) {
+			for (int i = 0; i < caps.length; i++) {
+				capErrs[i] = 100*(capErrs[i] / numSequences) - baselineErr;
+				capEffs[i] = 100*capEffs[i]/numSequences;
+				capZeroErrs[i] = 100*(capZeroErrs[i] / numSequences) - zeroBaselineErr;
+				capZeroEffs[i] = 100*(capZeroEffs[i] / numSequences);
+			}
+		}
+		
 		
 	}
 	
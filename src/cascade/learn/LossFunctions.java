@@ -66,6 +66,46 @@ public class LossFunctions  {
 		return loss / (double)(lattice.length());
 	}
 	
+	/**
+	 * compute the state efficiency loss of a filter given by a mask over the states (e.g. a capped
+	 * filter, see CascadeModel.computeCapMask).
+	 * @param lattice
+	 * @param keep one boolean for each state, true if the state survives the filter
+	 * @return the average fraction of unpruned states. 
+	 */
+	public static double computeStateEfficiencyLoss(Lattice lattice, boolean [] keep) {
+		return computeEfficiencyLoss(lattice, keep, false);
+	}
+	
+	/**
+	 * compute the edge efficiency loss of a filter given by a mask over the edges.
+	 * @param lattice
+	 * @param keep one boolean for each edge, true if the edge survives the filter
+	 * @return
+	 */
+	public static double computeEdgeEfficiencyLoss(Lattice lattice, boolean [] keep) {
+		return computeEfficiencyLoss(lattice, keep, true);
+	}
+	
+	private static double computeEfficiencyLoss(Lattice lattice, boolean [] keep, boolean edges) {
+		
+		double loss = 0;
+		for (int pos = 0; pos < lattice.length(); pos++) {
+			
+			int start = edges ? lattice.getEdgeOffset(pos) : lattice.getStateOffset(pos);
+			int end = edges ? lattice.getEdgeOffset(pos+1) : lattice.getStateOffset(pos+1);
+			
+			double numPruned = 0; 
+			for (int idx = start; idx < end; idx++) {
+				if (!keep[idx])
+					numPruned++;
+			}
+			loss += (1.0 - numPruned/(double)(end-start));
+		}
+		
+		return loss / (double)(lattice.length());
+	}
+	
 	/**
 	 * compute the fraction of entries in truthIdx that are both != Lattice.NULL_IDX and also have
 	 * marginals >= threshold.  This should work with both state and edge marginals, but truthIdx 
@@ -91,6 +131,22 @@ public class LossFunctions  {
 		return mistakes / (double)lattice.length();
 	}	
 	
+	/**
+	 * As computeFilterLoss(lattice, marginals, thresholds, truthIdx), for a filter given by a mask 
+	 * over the entries that truthIdx indexes into.
+	 */
+	public static double computeFilterLoss(Lattice lattice, boolean [] keep, int [] truthIdx) {
+		
+		double mistakes = 0;
+		for (int i = 0; i < truthIdx.length; i++) {
+			int truth = truthIdx[i];
+			if (truth == Lattice.NULL_IDX || !keep[truth])
+				mistakes++;
+		}
+		
+		return mistakes / (double)lattice.length();
+	}
+	
 	
 	public static double computeZeroOrderEdgeEfficiencyLoss(Lattice lattice, double [] marginals, double thresholds []) {
 		if(lattice.model instanceof NOrderPOS){
@@ -141,6 +197,36 @@ public class LossFunctions  {
 		return loss / (double)(lattice.length());
 	}
 	
+	/**
+	 * As computeZeroOrderEdgeEfficiencyLoss(lattice, marginals, thresholds), for a filter given 
+	 * by a mask over the edges. Specific to an NOrderPOS model.
+	 */
+	public static double computeZeroOrderEdgeEfficiencyLoss(Lattice lattice, boolean [] keep) {
+		
+		NOrderPOS model = (NOrderPOS) lattice.model;
+		boolean pruned[] = new boolean[model.getNumberOfTags()];
+		
+		double loss = 0;
+		for (int pos = 0; pos < lattice.length(); pos++) {
+			int start = lattice.getEdgeOffset(pos);
+			int end = lattice.getEdgeOffset(pos+1);
+			
+			Arrays.fill(pruned, true);
+			for (int idx = start; idx < end; idx++) {
+				if (keep[idx]) {
+					int ngram = model.computeNGramIDFromEdge(lattice, idx);
+					pruned[model.computeTagFromNGramID(lattice, model.order+1, ngram, 0)] = false;
+				}
+			}
+			
+			double numPruned = 0;
+			for(boolean b: pruned) if(b) numPruned++;
+			
+			loss += (1.0 - numPruned/(double)(pruned.length));
+		}
+		return loss / (double)(lattice.length());
+	}
+	
 	
 	/**
 	 * Computes the fraction of labels given the edge marginals and thresholds.  
@@ -362,6 +448,36 @@ public class LossFunctions  {
 		
 		return mistakes / (double)lattice.length();
 	}	
+	
+	/**
+	 * As computeZeroOrderEdgeFilterLoss(lattice, marginals, thresholds), for a filter given by a 
+	 * mask over the edges.
+	 */
+	public static double computeZeroOrderEdgeFilterLoss(Lattice lattice, boolean [] keep) {
+		double mistakes = 0;
+		
+		NOrderModel model = (NOrderModel) lattice.model;
+		
+		int [] labels = model.getTruth(lattice.seq);
+		
+		for (int pos = 0; pos < lattice.length(); pos++) {
+			
+			int start = lattice.getEdgeOffset(pos);
+			int end = lattice.getEdgeOffset(pos+1);
+			
+			boolean pruned = true;
+			for (int edgeIdx = start; edgeIdx < end; edgeIdx++) {
+				if (keep[edgeIdx] && model.edgeIdx2Label(lattice, edgeIdx) == labels[pos]) {
+					pruned = false;
+					break;
+				}
+			}
+			if (pruned)
+				mistakes++;
+		}
+		
+		return mistakes / (double)lattice.length();
+	}
 
 	/**
 	 * compute the classification error for a zero-order model (we look at state scores only). 
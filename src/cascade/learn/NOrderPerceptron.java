@@ -23,9 +23,8 @@ public class NOrderPerceptron extends UpdateRule {
 		NOrderModel model = (NOrderModel) lattice.model;
 		
 		
-		// FIXME: only necessary to compute alpha, not all marginals!!
-		// really?  I think you need all of them in order to be able to computeGuesses. 
-		model.computeEdgeMarginals(lattice, w);
+		// only the argmax path is needed, so skip the backward pass
+		model.computeInference(lattice, w, NOrderModel.ARGMAX);
 		
 		int [] guess = model.computeGuesses(lattice);
 		int [] truth = model.getTruth(lattice.seq);
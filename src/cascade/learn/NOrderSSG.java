@@ -20,9 +20,8 @@ public class NOrderSSG extends UpdateRule {
 		
 		boolean oldval = model.addHammingLoss;
 		model.addHammingLoss = true;
-		// FIXME: only necessary to compute alpha, not all marginals!!
-		// really?  I think you need all of them in order to be able to computeGuesses. 
-		model.computeEdgeMarginals(lattice, w);
+		// only the argmax path is needed, so skip the backward pass
+		model.computeInference(lattice, w, NOrderModel.ARGMAX);
 
 		// include updates along the final edge (X,-1)
 
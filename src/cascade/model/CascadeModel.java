@@ -1,7 +1,5 @@
 package cascade.model;
 
-import gnu.trove.TDoubleArrayList;
-import gnu.trove.TIntArrayList;
 
 import java.security.InvalidParameterException;
 import java.util.List;
@@ -11,11 +9,13 @@ import cascade.features.FeatureGenerator;
 import cascade.features.Weights;
 import cascade.io.Sequence;
 import cascade.lattice.Lattice;
+import cascade.lattice.LatticeBuilder;
 import cascade.learn.FilterTradeoffStatistics;
 import cascade.learn.GeneralizationStatistics;
 import cascade.learn.UpdateRule;
 import cascade.programs.Options;
 import cascade.util.Alphabet;
+import cascade.util.ArrayUtil;
 
 /**
  * 
@@ -67,6 +67,31 @@ public abstract class CascadeModel  {
 	 */
 	public double maxalpha = 1.0;
 	
+	/**
+	 * If positive, the filter keeps at most this many states (or edges) at each position, those with
+	 * the highest marginals, on top of the alpha threshold. Ties at the cut-off are broken by index, 
+	 * so that exactly this many are candidates, and the best entry of a position is always kept; 
+	 * truth entries are still kept during training. 
+	 */
+	public int maxPerPosition = 0;
+	
+	/**
+	 * Values of maxPerPosition to sweep when computing the filter trade-off statistics, or null
+	 * to only sweep alphas (see FilterTradeoffStatistics). 
+	 */
+	public List<Integer> tradeoffCaps = null;
+	
+	/**
+	 * If true, the per-tag weights of the position features are stored tag-minor, i.e. the weights
+	 * of one feature for all tags are contiguous, so that each position is scored for every tag in 
+	 * one sweep over its features (see Weights.scoreAll) instead of once per tag. Weights trained 
+	 * with one layout can't be used with the other.
+	 */
+	public boolean tagMinorWeights = false;
+	
+	// scratch buffer for computeCapMask
+	private double [] capBuffer = null;
+	
 	public CascadeModel() {}
 	
 	/**
@@ -82,6 +107,55 @@ public abstract class CascadeModel  {
 			throw new InvalidParameterException("trainingAlphas is a required argument to CascadeModel");
 	}
 	
+	/**
+	 * Marks in keep the states (or edges) that pass a capped filter: at each position, those whose 
+	 * score is above the threshold of the position and among its K highest, ties at the K'th score 
+	 * being broken in favour of the lower index. If that leaves a position empty, its highest 
+	 * scoring entry (the first one, if tied) is kept anyway. Reuses keep if it is large enough.
+	 * 
+	 * @param thresholds
+	 *  one threshold per position, or one for the whole lattice
+	 */
+	protected boolean [] computeCapMask(Lattice lattice, double [] scores, double [] thresholds, int K, 
+			boolean edges, boolean [] keep) {
+		
+		int npos = edges ? lattice.length()+1 : lattice.length();
+		keep = ArrayUtil.ensureCapacity(keep, edges ? lattice.getNumEdges() : lattice.getNumStates());
+		
+		for (int pos = 0; pos < npos; pos++) {
+			int start = edges ? lattice.getEdgeOffset(pos) : lattice.getStateOffset(pos);
+			int end = edges ? lattice.getEdgeOffset(pos+1) : lattice.getStateOffset(pos+1);
+			double threshold = (thresholds.length > 1) ? thresholds[pos] : thresholds[0];
+			
+			// the K'th highest score, and how many entries equal to it are within the cap
+			double kth = Double.NEGATIVE_INFINITY;
+			int numTied = end - start;
+			if (end - start > K) {
+				capBuffer = ArrayUtil.ensureCapacity(capBuffer, end - start);
+				System.arraycopy(scores, start, capBuffer, 0, end - start);
+				kth = ArrayUtil.selectLargest(capBuffer, end - start, K-1);
+				
+				numTied = K;
+				for (int idx = start; idx < end; idx++)
+					if (scores[idx] > kth)
+						numTied--;
+			}
+			
+			boolean empty = true;
+			int argmax = start;
+			for (int idx = start; idx < end; idx++) {
+				boolean inCap = scores[idx] > kth || (scores[idx] == kth && numTied-- > 0);
+				keep[idx] = inCap && scores[idx] > threshold;
+				empty &= !keep[idx];
+				if (scores[idx] > scores[argmax])
+					argmax = idx;
+			}
+			if (empty && end > start)
+				keep[argmax] = true;
+		}
+		return keep;
+	}
+	
 	/**
 	 * Returns an array of ints indicating the sequence of true states for this Sequence object.
 	 * 
@@ -123,16 +197,13 @@ public abstract class CascadeModel  {
 	 * 
 	 * @param base
 	 * @param mask
-	 * @param newStateIDs
-	 * 	TIntArrayList that will hold the new state IDs
-	 * @param newStateScores
-	 *  TDoubleArrayList that will hold the new state scores (if any)
+	 * @param builder
+	 * 	LatticeBuilder that will hold the new state IDs and scores (see LatticeBuilder.addState)
 	 * @param newStatePosOffsets
 	 *  array holding position offsets of the new states
 	 */
 	public abstract void generateValidStates(Lattice base, boolean mask [], 
-			TIntArrayList newStateIDs, TDoubleArrayList newStateScores, 
-			int [] newStatePosOffsets);
+			LatticeBuilder builder, int [] newStatePosOffsets);
 	
 	/**
 	 * Returns the interpretable string representation of a given state.
@@ -219,11 +290,78 @@ public abstract class CascadeModel  {
 	 */
 	public abstract boolean[] computeFilterMask(Lattice lattice, Weights w,
 			double alpha, boolean isTraining);
+	
+	/**
+	 * Filters the lattice as computeFilterMask would and expands the result with the next model
+	 * as next.expandLattice would, returning the new lattice. 
+	 * 
+	 * By default this does exactly that; models can override it to add the surviving states 
+	 * straight to a LatticeBuilder while thresholding (see Lattice(Lattice, CascadeModel, 
+	 * LatticeBuilder, int[])), so that no mask is written and the base lattice is not swept 
+	 * again to generate the new states.
+	 * 
+	 * @param lattice
+	 * @param w
+	 * @param alpha
+	 * @param isTraining
+	 * @param next
+	 * the model of the next level
+	 * @return
+	 */
+	public Lattice filterAndExpand(Lattice lattice, Weights w, double alpha, boolean isTraining, 
+			CascadeModel next) {
+		return next.expandLattice(lattice, computeFilterMask(lattice, w, alpha, isTraining));
+	}
 
 
 	public abstract int[] getPreviousStates(Sequence seq, int pos, int state);
 
 	public abstract int[] getNextStates(Sequence seq, int pos, int state);
+	
+	/**
+	 * Non-allocating variant of getPreviousStates: writes the states into the caller's buffer, which 
+	 * must hold at least getMaxNumTransitions() entries, and returns their number. 
+	 * 
+	 * Default: copies the result of getPreviousStates.
+	 */
+	public int getPreviousStates(Sequence seq, int pos, int state, int [] states) {
+		int [] prev = getPreviousStates(seq, pos, state);
+		System.arraycopy(prev, 0, states, 0, prev.length);
+		return prev.length;
+	}
+	
+	/**
+	 * Non-allocating variant of getNextStates, see getPreviousStates(Sequence, int, int, int[]).
+	 * 
+	 * Default: copies the result of getNextStates.
+	 */
+	public int getNextStates(Sequence seq, int pos, int state, int [] states) {
+		int [] next = getNextStates(seq, pos, state);
+		System.arraycopy(next, 0, states, 0, next.length);
+		return next.length;
+	}
+	
+	/**
+	 * Maximum number of states returned by getPreviousStates or getNextStates, i.e. the size of the
+	 * buffers to pass to their non-allocating variants.
+	 * 
+	 * Default: -1, no bound is known, so callers must use the allocating variants.
+	 */
+	public int getMaxNumTransitions() {
+		return -1;
+	}
+	
+	/**
+	 * Whether the states produced by generateValidStates are exactly the unpruned edges of the 
+	 * base lattice, in edge order. If so, the edges of the new lattice are the pairs of adjacent 
+	 * unpruned base edges that share a base state, and the Lattice constructor reads them off the
+	 * base lattice instead of enumerating getPreviousStates/getNextStates.
+	 * 
+	 * Default: false.
+	 */
+	public boolean expandsBaseEdges() {
+		return false;
+	}
 
 	/**
 	 * Prepares the model for handling a given lattice. By default, it just makes sure
@@ -1,9 +1,8 @@
 package cascade.model;
 
-import gnu.trove.TDoubleArrayList;
-import gnu.trove.TIntArrayList;
 import cascade.features.FeatureGenerator;
 import cascade.lattice.Lattice;
+import cascade.lattice.LatticeBuilder;
 import cascade.programs.Options;
 import cascade.util.Alphabet;
 
@@ -22,8 +21,7 @@ public class FirstOrderPOS extends NOrderPOS {
 
 	@Override
 	public void generateValidStates(Lattice base, boolean[] mask,
-			TIntArrayList newStateIDs, TDoubleArrayList newStateScores,
-			int[] newStatePosOffsets) {
+			LatticeBuilder builder, int[] newStatePosOffsets) {
 
 		// just add only the states that weren't pruned in the old model
 		for (int pos = 0; pos < base.length(); pos++) {
@@ -35,8 +33,7 @@ public class FirstOrderPOS extends NOrderPOS {
 			
 			for (int idx = start; idx < end; idx++) 
 				if (mask[idx]) {
-					newStateScores.add(base.stateScores[idx]);
-					newStateIDs.add(base.getStateID(idx));
+					builder.addState(base.getStateID(idx), base.stateScores[idx]);
 					allPruned = false;
 				}
 
@@ -47,11 +44,19 @@ public class FirstOrderPOS extends NOrderPOS {
 					System.out.printf("score[%d] = %g [%s]", idx, base.stateScores[idx], Boolean.toString(mask[idx]));
 				throw new RuntimeException("Broken lattice after pruning");
 			}
-			newStatePosOffsets[pos+1] = newStateIDs.size();
+			newStatePosOffsets[pos+1] = builder.getNumStates();
 			
 		}
 	}
 
+	/**
+	 * States are carried over from the (edgeless) base lattice, so edges must be enumerated.
+	 */
+	@Override
+	public boolean expandsBaseEdges() {
+		return false;
+	}
+
 	@Override
 	public void init(Options opts) {
 		order = 1; // fix order so it can't be overridden
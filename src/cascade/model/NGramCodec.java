@@ -0,0 +1,357 @@
+package cascade.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import cascade.util.ArrayUtil;
+import cascade.util.NgramTrieDictionary;
+
+/**
+ * Encodes n-grams of tags as numeric IDs, as used by NOrderPOS. The ID of an n-gram is its tags
+ * written as the digits of a number in base getBase(), the current tag (offset 0) being the most
+ * significant digit and the oldest tag (offset n-1) the least significant one.
+ *
+ * The powers of the base are computed once. If padded, the base is the number of tags rounded up to
+ * a power of two, so that all operations are shifts and masks; the IDs are then sparse (not every ID
+ * below pow(n) is a valid n-gram) and differ from the unpadded ones.
+ *
+ * If sparse, IDs are instead assigned to n-grams in the order they are first encoded, using one
+ * NgramTrieDictionary per n, so that they stay small however many tags and whatever the order.
+ * The dictionaries (SparseIDs) belong to one cascade, whose models must all agree on the IDs, and
+ * are saved with its models; they only ever grow. Unigram IDs are the tags themselves. IDs are 
+ * still below numTags^n, which size(n) returns.
+ */
+public final class NGramCodec {
+
+	private final int numTags;
+	private final int base;
+	private final boolean padded;
+
+	// log2(base) and base-1, if padded
+	private final int shift;
+	private final long mask;
+
+	// powers[p] = base^p, saturated at Long.MAX_VALUE if sparse
+	private final long [] powers;
+
+	// dictionaries of sparse IDs, or null
+	private final SparseIDs sparseIDs;
+	private final int maxOrder;
+
+	/**
+	 * @param numTags
+	 *  number of tags, including the NULL tag
+	 * @param maxOrder
+	 *  longest n-gram that will be encoded
+	 * @param padded
+	 *  whether to round the base up to a power of two
+	 */
+	public NGramCodec(int numTags, int maxOrder, boolean padded) {
+		this(numTags, maxOrder, padded, null);
+	}
+
+	/**
+	 * @param numTags
+	 *  number of tags, including the NULL tag
+	 * @param maxOrder
+	 *  longest n-gram that will be encoded
+	 * @param padded
+	 *  whether to round the base up to a power of two
+	 * @param sparseIDs
+	 *  if not null, the dictionaries in which to look up the IDs of the n-grams instead
+	 */
+	public NGramCodec(int numTags, int maxOrder, boolean padded, SparseIDs sparseIDs) {
+
+		if (numTags < 1)
+			throw new IllegalArgumentException("need at least one tag, got " + numTags);
+		if (padded && sparseIDs != null)
+			throw new IllegalArgumentException("sparse n-gram IDs cannot be padded");
+		if (sparseIDs != null && sparseIDs.numTags != numTags)
+			throw new IllegalArgumentException("sparse n-gram IDs are over " + sparseIDs.numTags + " tags, not " + numTags);
+
+		this.numTags = numTags;
+		this.maxOrder = maxOrder;
+		this.padded = padded;
+
+		if (padded) {
+			int s = 0;
+			while ((1 << s) < numTags)
+				s++;
+			shift = s;
+			base = 1 << s;
+			mask = base - 1;
+		} else {
+			shift = -1;
+			base = numTags;
+			mask = -1;
+		}
+
+		this.sparseIDs = sparseIDs;
+		powers = new long[maxOrder+1];
+		powers[0] = 1;
+		for (int p = 1; p <= maxOrder; p++) {
+			if (powers[p-1] > Long.MAX_VALUE / base) {
+				if (sparseIDs == null)
+					throw new RuntimeException(maxOrder + "-grams over " + base + " tags do not fit in 64 bits");
+				powers[p] = Long.MAX_VALUE;
+			} else
+				powers[p] = powers[p-1] * base;
+		}
+	}
+
+	public int getNumTags() { return numTags; }
+
+	public int getBase() { return base; }
+
+	public boolean isPadded() { return padded; }
+
+	public boolean isSparse() { return sparseIDs != null; }
+
+	/** the dictionaries of sparse IDs, or null */
+	public SparseIDs getSparseIDs() { return sparseIDs; }
+
+	public int getMaxOrder() { return maxOrder; }
+
+	/**
+	 * Returns base^p, i.e. the number of possible p-gram IDs. Not defined if sparse.
+	 */
+	public long pow(int p) {
+		if (sparseIDs != null)
+			throw new UnsupportedOperationException("sparse n-gram IDs have no fixed range");
+		return powers[p];
+	}
+
+	/**
+	 * Returns a fixed upper bound on the IDs of n-grams: pow(n), or if sparse the number of possible
+	 * n-grams, numTags^n (saturated at Long.MAX_VALUE).
+	 */
+	public long size(int n) {
+		return powers[n];
+	}
+
+	/**
+	 * Returns the ID of the n-gram whose tag at offset i (0 = current tag) is tags[i].
+	 */
+	public long encode(int [] tags, int n) {
+
+		if (sparseIDs != null)
+			return sparseIDs.encode(tags, n);
+
+		long id = 0;
+		for (int i = 0; i < n; i++)
+			id = padded ? ((id << shift) | tags[i]) : (id * base + tags[i]);
+		return id;
+	}
+
+	/**
+	 * Returns the ID of the n-gram whose tags are all equal to tag.
+	 */
+	public long repeat(int tag, int n) {
+
+		int [] tags = new int[n];
+		for (int i = 0; i < n; i++)
+			tags[i] = tag;
+		return encode(tags, n);
+	}
+
+	/**
+	 * Returns the tag at a given time offset (0 = current tag) in an n-gram.
+	 */
+	public int tag(long ngramID, int n, int offset) {
+
+		if (sparseIDs != null)
+			return sparseIDs.tag(ngramID, n, offset);
+
+		int digit = n - offset - 1;
+		if (padded)
+			return (int) ((ngramID >>> (shift*digit)) & mask);
+		else
+			return (int) ((ngramID / powers[digit]) % base);
+	}
+
+	/**
+	 * Returns the k most recent tags of an n-gram, as a k-gram, i.e. drops the n-k oldest tags.
+	 */
+	public long prefix(long ngramID, int n, int k) {
+
+		if (sparseIDs != null)
+			return sparseIDs.recode(ngramID, n, 0, k, -1);
+
+		if (padded)
+			return ngramID >>> (shift*(n-k));
+		else
+			return ngramID / powers[n-k];
+	}
+
+	/**
+	 * Returns the k oldest tags of an n-gram, as a k-gram, i.e. drops the n-k most recent tags.
+	 */
+	public long suffix(long ngramID, int n, int k) {
+
+		if (sparseIDs != null)
+			return sparseIDs.recode(ngramID, n, n-k, k, -1);
+
+		if (padded)
+			return ngramID & ((1L << (shift*k)) - 1);
+		else
+			return ngramID % powers[k];
+	}
+
+	/**
+	 * Returns the (n+1)-gram made of a tag followed by an n-gram, i.e. with that tag as the oldest one.
+	 */
+	public long append(long ngramID, int n, int tag) {
+
+		if (sparseIDs != null)
+			return sparseIDs.recode(ngramID, n, 0, n, tag);
+
+		if (padded)
+			return (ngramID << shift) | tag;
+		else
+			return ngramID * base + tag;
+	}
+
+	/**
+	 * Returns the n-gram obtained by moving an n-gram forward by one tag: the new tag becomes
+	 * the current one and the oldest tag is dropped.
+	 */
+	public long next(long ngramID, int n, int tag) {
+
+		if (sparseIDs != null)
+			return sparseIDs.shift(ngramID, n, tag);
+
+		if (padded)
+			return ((long) tag << (shift*(n-1))) | (ngramID >>> shift);
+		else
+			return tag * powers[n-1] + ngramID / base;
+	}
+
+	/**
+	 * Returns the (n+1)-gram spanning an edge between two n-grams: the tags of right followed by the
+	 * oldest tag of left.
+	 */
+	public long join(long left, long right, int n) {
+		return append(right, n, tag(left, n, n-1));
+	}
+
+	/**
+	 * The dictionaries of sparse IDs, one per n > 1 (unigram IDs are the tags, and the empty n-gram is 0).
+	 * They are shared by the models of one cascade (see NOrderPOS.shareSparseIDs) and are not thread safe.
+	 */
+	public static final class SparseIDs {
+
+		private final int numTags;
+		private final ArrayList<NgramTrieDictionary> dicts = new ArrayList<NgramTrieDictionary>();
+
+		// scratch n-gram
+		private int [] buf = new int[8];
+
+		public SparseIDs(int numTags) {
+			this.numTags = numTags;
+		}
+
+		public int getNumTags() { return numTags; }
+
+		private NgramTrieDictionary dict(int n) {
+			while (dicts.size() <= n)
+				dicts.add(dicts.size() < 2 ? null : new NgramTrieDictionary(dicts.size(), numTags));
+			return dicts.get(n);
+		}
+
+		/**
+		 * Number of n-grams that have been assigned an ID so far.
+		 */
+		public int size(int n) {
+			if (n == 0)
+				return 1;
+			return (n == 1) ? numTags : dict(n).size();
+		}
+
+		long encode(int [] tags, int n) {
+			if (n == 0)
+				return 0;
+			return (n == 1) ? tags[0] : dict(n).addNGramId(tags, n);
+		}
+
+		int tag(long ngramID, int n, int offset) {
+			return (n == 1) ? (int) ngramID : dict(n).getTag((int) ngramID, offset);
+		}
+
+		/**
+		 * Encodes the k tags of an n-gram from offset start on, followed by tag if tag >= 0.
+		 */
+		long recode(long ngramID, int n, int start, int k, int tag) {
+			int m = (tag >= 0) ? k+1 : k;
+			buf = ArrayUtil.ensureCapacity(buf, m);
+			for (int i = 0; i < k; i++)
+				buf[i] = tag(ngramID, n, start+i);
+			if (tag >= 0)
+				buf[k] = tag;
+			return encode(buf, m);
+		}
+
+		long shift(long ngramID, int n, int tag) {
+			buf = ArrayUtil.ensureCapacity(buf, n);
+			for (int i = n-1; i > 0; i--)
+				buf[i] = tag(ngramID, n, i-1);
+			buf[0] = tag;
+			return encode(buf, n);
+		}
+
+		/**
+		 * Adds the n-grams of other that are missing here, under the same IDs. other must have been
+		 * built along with these dictionaries, i.e. the n-grams they both have must have the same IDs.
+		 */
+		public void merge(SparseIDs other) {
+
+			if (other.numTags != numTags)
+				throw new RuntimeException("cannot merge sparse n-gram IDs over " + other.numTags + " tags into IDs over " + numTags);
+
+			for (int n = 2; n < other.dicts.size(); n++) {
+				int size = size(n);
+				int [] ngram = new int[n];
+				for (int id = 0; id < other.size(n); id++) {
+					for (int i = 0; i < n; i++)
+						ngram[i] = other.tag(id, n, i);
+					if ((id < size) ? (dict(n).getNGramId(ngram) != id) : (encode(ngram, n) != id))
+						throw new RuntimeException("sparse " + n + "-gram IDs disagree at " + id + "; the models were not trained together");
+				}
+			}
+		}
+
+		/**
+		 * Writes the n-grams in order of their IDs, so that read assigns them the same IDs.
+		 */
+		public void write(DataOutput out) throws IOException {
+
+			out.writeInt(numTags);
+			out.writeInt(dicts.size());
+			for (int n = 2; n < dicts.size(); n++) {
+				int size = size(n);
+				out.writeInt(size);
+				for (int id = 0; id < size; id++)
+					for (int i = 0; i < n; i++)
+						out.writeInt(tag(id, n, i));
+			}
+		}
+
+		public static SparseIDs read(DataInput in) throws IOException {
+
+			SparseIDs ids = new SparseIDs(in.readInt());
+			int numDicts = in.readInt();
+			for (int n = 2; n < numDicts; n++) {
+				int size = in.readInt();
+				ids.buf = ArrayUtil.ensureCapacity(ids.buf, n);
+				for (int id = 0; id < size; id++) {
+					for (int i = 0; i < n; i++)
+						ids.buf[i] = in.readInt();
+					if (ids.encode(ids.buf, n) != id)
+						throw new IOException("duplicate " + n + "-gram in sparse n-gram IDs");
+				}
+			}
+			return ids;
+		}
+	}
+}
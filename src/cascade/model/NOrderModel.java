@@ -55,6 +55,44 @@ public abstract class NOrderModel extends CascadeModel {
 	 */
 	public int [] witnessCount; 
 
+	/*
+	 * Quantities that can be requested from computeInference; they can be combined with |, and 
+	 * each implies the ones it is computed from.
+	 */
+	
+	/** Forward pass: alphaVals, alphaArgs. */
+	public static final int FORWARD = 1;
+	
+	/** 
+	 * Backward pass: betaVals, betaArgs; implies FORWARD, since the kernels size their buffers 
+	 * and build their potentials in the forward pass. 
+	 */
+	public static final int BACKWARD = 2;
+	
+	/** 
+	 * The marginalVals of the final edges, which with FORWARD is enough for computeGuesses and 
+	 * Lattice.getArgmaxEdgeIdx; the other marginalVals are undefined. 
+	 */
+	public static final int ARGMAX = 4;
+	
+	/** The marginalVals of all edges; implies FORWARD, BACKWARD and ARGMAX. */
+	public static final int MARGINALS = 8;
+	
+	/** witnessCount, reset to zero so that it can be filled by Lattice.computeEdgeWitnesses. */
+	public static final int WITNESSES = 16;
+	
+	/**
+	 * Scores the lattice with w and computes only the requested quantities (see FORWARD etc.)
+	 * into the buffers of this model. Quantities already computed for the same lattice and the
+	 * same version of w are reused rather than computed again. 
+	 * 
+	 * @param lattice
+	 * @param w
+	 * @param request
+	 * @return time taken by this call, in ms; quantities that were reused are not counted again
+	 */
+	public abstract double computeInference(Lattice lattice, Weights w, int request);
+	
 	/**
 	 * compute the edge marginals
 	 * FIXME: This should really be computeMarginals, and should reside in 
@@ -63,7 +101,9 @@ public abstract class NOrderModel extends CascadeModel {
 	 * @param w
 	 * @return time to complete FIXME: this shouldn't be computed inside this method, right?
 	 */
-	public abstract double computeEdgeMarginals(Lattice lattice, Weights w);
+	public double computeEdgeMarginals(Lattice lattice, Weights w) {
+		return computeInference(lattice, w, MARGINALS | WITNESSES);
+	}
 
 	/**
 	 * compute the best guess for the lattice. 
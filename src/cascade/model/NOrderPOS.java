@@ -1,8 +1,6 @@
 package cascade.model;
 
 import gnu.trove.PrimeFinder;
-import gnu.trove.TDoubleArrayList;
-import gnu.trove.TIntArrayList;
 
 
 import java.io.Externalizable;
@@ -11,6 +9,7 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import cascade.features.FeatureGenerator;
@@ -23,7 +22,9 @@ import cascade.io.ObjectReader;
 import cascade.io.SentenceInstance;
 import cascade.io.Sequence;
 import cascade.lattice.Lattice;
+import cascade.lattice.LatticeBuilder;
 import cascade.lattice.Viterbi;
+import cascade.lattice.ViterbiKBest;
 import cascade.lattice.ViterbiMaxSum;
 import cascade.learn.FilterTradeoffStatistics;
 import cascade.learn.GeneralizationStatistics;
@@ -43,7 +44,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	/**
 	 * 
 	 */
-	protected static final long serialVersionUID = 3L;
+	protected static final long serialVersionUID = 7L;
 	
 	/**
 	 * Constant to represent the NULL tag, which is necessary to construct higher order Ngrams
@@ -86,7 +87,35 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	 * (if using sum-product marginals).
 	 */
 	public boolean useAlphaAsThreshold = false;
+	
+	/**
+	 * If positive, computeFilterMask keeps exactly the edges on the filterTopK best paths instead of
+	 * thresholding the marginals, which bounds the size of the next lattice. Requires a ViterbiKBest 
+	 * (one is created if no viterbi is given). 
+	 */
+	public int filterTopK = 0;
+	
+	/**
+	 * If true, expanded lattices are saved without features, only with the marginals needed to 
+	 * compute them, and their features are computed when they are next prepared for use
+	 * (see prepareForLattice). Saves disk space and I/O at the cost of recomputing features every epoch.
+	 */
+	public boolean lazyFeatures = false;
 
+	/**
+	 * Whether to round the number of tags up to a power of two in n-gram IDs, so that they are
+	 * encoded and decoded with shifts and masks (see NGramCodec). This changes the IDs, so it must 
+	 * be the same for all the NOrderPOS models of a cascade.
+	 */
+	public boolean padNGramIDs = false;
+
+	/**
+	 * Whether to number only the n-grams that actually occur, instead of encoding their tags 
+	 * in the ID (see NGramCodec). Needed when |tags|^(order+1) does not fit in an int, e.g. for
+	 * large tag sets or high orders; must be the same for all the NOrderPOS models of a cascade.
+	 * The IDs are shared by the models of a cascade (see Options.ngramIDs) and saved with each model.
+	 */
+	public boolean sparseNGramIDs = false;
 	
 	/**
 	 * Alphabet to store mapping from state #'s to POS tags. 
@@ -100,6 +129,27 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	public List<Boolean> shouldComputeFeatures = null;
 	
 	protected int FULL_NULL_STATE;
+	
+	/**
+	 * Encodes the n-gram IDs of this model, up to (order+1)-grams for the edges.
+	 */
+	protected NGramCodec codec;
+	
+	// scratch n-gram for computeNGramIDFromTags
+	private int [] ngramTags = null;
+	
+	// scores of every tag at a position, if tagMinorWeights
+	private double [] tagScores = null;
+	
+	// what the inference buffers hold (see computeInference)
+	private Lattice inferenceLattice = null;
+	private Sequence inferenceSeq = null;
+	private Weights inferenceWeights = null;
+	private long inferenceVersion;
+	private boolean inferenceHammingLoss;
+	private int inferenceDone = 0;
+	// time spent computing what the inference buffers hold, in ms, however many calls it took
+	private double inferenceTime = 0;
 
 	Options options;
 
@@ -109,6 +159,9 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	public Viterbi viterbi;
 	public double betaVals[];
 	public boolean mask[];
+	
+	// edges kept by the filter, for the statistics when it is not a single threshold
+	private boolean statsMask[];
 
 	
 	@Override	
@@ -123,8 +176,10 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		stats.numEdges += lattice.getNumEdges();
 		stats.numPossibleStates += getNumberOfTags()*lattice.length();				
 		
-		// run all viterbi to compute marginals etc.
-		stats.avgTestTime += computeEdgeMarginals(lattice, w);
+		// run all viterbi to compute marginals etc.; the time is that of the whole inference for 
+		// the lattice, counted once here even if some of it was done (and cached) by earlier calls
+		computeEdgeMarginals(lattice, w);
+		stats.avgTestTime += inferenceTime;
 		
 		// tally classification results
 		
@@ -143,21 +198,31 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		lattice.edgeScores = marginalVals;
 		lattice.computeEdgeMeanMax();
 				
-		// tally pruning results: use a single threshold
-		double thresholds[] = new double[1];
-		thresholds[0] = useAlphaAsThreshold ? alpha : ((1-alpha)*lattice.meanEdgeScore + alpha*lattice.maxEdgeScore);
+		// tally pruning results: use a single threshold, capped per position if needed
+		double threshold = useAlphaAsThreshold ? alpha : ((1-alpha)*lattice.meanEdgeScore + alpha*lattice.maxEdgeScore);
+		double thresholds[] = {threshold};
 		
 		int [] truthEdgeIdx = lattice.findEdgeIdx(getTruthStates(lattice.seq));
 		
 		stats.baselineErr += LossFunctions.computeFilterLoss(lattice, truthEdgeIdx);
 		stats.zeroBaselineErr += LossFunctions.computeZeroOrderFilterLoss(lattice);
 
-		double pruneError = LossFunctions.computeFilterLoss(lattice, marginalVals, thresholds, truthEdgeIdx);		
-		
+		double pruneError;
+		if (filterTopK > 0 || maxPerPosition > 0) {
+			statsMask = (filterTopK > 0) ? computeTopPathMask(lattice, w, statsMask)
+					: computeCapMask(lattice, marginalVals, thresholds, maxPerPosition, true, statsMask);
+			
+			pruneError = LossFunctions.computeFilterLoss(lattice, statsMask, truthEdgeIdx);
+			stats.totalPruneZError += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, statsMask);		
+			stats.totalPruneEff += LossFunctions.computeEdgeEfficiencyLoss(lattice, statsMask); 
+			stats.totalPruneZEff += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, statsMask);
+		} else {
+			pruneError = LossFunctions.computeFilterLoss(lattice, marginalVals, thresholds, truthEdgeIdx);		
+			stats.totalPruneZError += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, marginalVals, thresholds);		
+			stats.totalPruneEff += LossFunctions.computeEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
+			stats.totalPruneZEff += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, marginalVals, thresholds);
+		}
 		stats.totalPruneError += pruneError;
-		stats.totalPruneZError += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, marginalVals, thresholds);		
-		stats.totalPruneEff += LossFunctions.computeEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
-		stats.totalPruneZEff += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, marginalVals, thresholds);
 		
 		if (pruneError > 0) stats.numSequencePruneMistakes++;
 	}
@@ -174,16 +239,43 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		stats.zeroBaselineErr += LossFunctions.computeZeroOrderFilterLoss(lattice);
 		stats.zeroBaselineEff += LossFunctions.computeZeroOrderEfficiencyLoss(lattice);
 		
+		// the top paths do not depend on alpha
+		if (filterTopK > 0)
+			statsMask = computeTopPathMask(lattice, w, statsMask);
+		
 		// for each alpha, recompute thresholds and then recompute efficiency etc.
 		for (int i = 0; i < stats.alphas.length; i++) {
 			double alpha = stats.alphas[i];
 		
 			thresholds[0] = useAlphaAsThreshold ? alpha : ((1-alpha)*lattice.meanEdgeScore + alpha*lattice.maxEdgeScore);
 			
-			stats.effs[i] += LossFunctions.computeEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
-			stats.errs[i] += LossFunctions.computeFilterLoss(lattice, marginalVals, thresholds, truthEdgeIdx);		
-			stats.zeroEffs[i] += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
-			stats.zeroErrs[i] += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, marginalVals, thresholds);
+			if (filterTopK > 0 || maxPerPosition > 0) {
+				if (filterTopK <= 0)
+					statsMask = computeCapMask(lattice, marginalVals, thresholds, maxPerPosition, true, statsMask);
+				
+				stats.effs[i] += LossFunctions.computeEdgeEfficiencyLoss(lattice, statsMask); 
+				stats.errs[i] += LossFunctions.computeFilterLoss(lattice, statsMask, truthEdgeIdx);		
+				stats.zeroEffs[i] += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, statsMask); 
+				stats.zeroErrs[i] += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, statsMask);
+			} else {
+				stats.effs[i] += LossFunctions.computeEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
+				stats.errs[i] += LossFunctions.computeFilterLoss(lattice, marginalVals, thresholds, truthEdgeIdx);		
+				stats.zeroEffs[i] += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, marginalVals, thresholds); 
+				stats.zeroErrs[i] += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, marginalVals, thresholds);
+			}
+		}
+		
+		// for each cap, the cap alone
+		if (stats.caps != null) {
+			thresholds[0] = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < stats.caps.length; i++) {
+				statsMask = computeCapMask(lattice, marginalVals, thresholds, stats.caps[i], true, statsMask);
+				
+				stats.capEffs[i] += LossFunctions.computeEdgeEfficiencyLoss(lattice, statsMask); 
+				stats.capErrs[i] += LossFunctions.computeFilterLoss(lattice, statsMask, truthEdgeIdx);		
+				stats.capZeroEffs[i] += LossFunctions.computeZeroOrderEdgeEfficiencyLoss(lattice, statsMask); 
+				stats.capZeroErrs[i] += LossFunctions.computeZeroOrderEdgeFilterLoss(lattice, statsMask);
+			}
 		}
 		
 		stats.numSequences++;
@@ -202,26 +294,67 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	}
 	
 	@Override
-	public double computeEdgeMarginals(Lattice lattice, Weights w) {
+	public double computeInference(Lattice lattice, Weights w, int request) {
 		long start = System.nanoTime();
-
-		edgeScores = ArrayUtil.ensureCapacity(edgeScores, lattice.getNumEdges());
-		marginalVals = ArrayUtil.ensureCapacity(marginalVals, lattice.getNumEdges());
-		witnessCount = ArrayUtil.ensureCapacityReset(witnessCount, lattice.getNumEdges());
 		
-		alphaVals = ArrayUtil.ensureCapacity(alphaVals, lattice.getNumStates());
-		betaVals = ArrayUtil.ensureCapacity(betaVals, lattice.getNumStates());
-		alphaArgs = ArrayUtil.ensureCapacity(alphaArgs, lattice.getNumStates());
-		betaArgs = ArrayUtil.ensureCapacity(betaArgs, lattice.getNumStates());
+		if (lattice != inferenceLattice || lattice.seq != inferenceSeq || w != inferenceWeights 
+				|| w.getVersion() != inferenceVersion || addHammingLoss != inferenceHammingLoss) {
+			
+			inferenceLattice = lattice;
+			inferenceSeq = lattice.seq;
+			inferenceWeights = w;
+			inferenceVersion = w.getVersion();
+			inferenceHammingLoss = addHammingLoss;
+			inferenceDone = 0;
+			inferenceTime = 0;
+			
+			edgeScores = ArrayUtil.ensureCapacity(edgeScores, lattice.getNumEdges());
+			lattice.edgeScores = edgeScores;
+			this.scoreLatticeEdges(w, lattice);
+		} else {
+			// callers may have replaced the scores by the marginals
+			lattice.edgeScores = edgeScores;
+		}
 		
-		lattice.edgeScores = edgeScores;
-		this.scoreLatticeEdges(w, lattice);
+		if ((request & MARGINALS) != 0)
+			request |= FORWARD | BACKWARD | ARGMAX;
+		if ((request & (ARGMAX | BACKWARD)) != 0)
+			request |= FORWARD;
+		int todo = request & ~inferenceDone;
 		
-		viterbi.computeAlpha(lattice, alphaVals, alphaArgs);
-		viterbi.computeBeta(lattice, betaVals, betaArgs);
-		viterbi.computeEdgeMarginals(lattice, alphaVals, betaVals, marginalVals);
+		if ((todo & FORWARD) != 0) {
+			alphaVals = ArrayUtil.ensureCapacity(alphaVals, lattice.getNumStates());
+			alphaArgs = ArrayUtil.ensureCapacity(alphaArgs, lattice.getNumStates());
+			viterbi.computeAlpha(lattice, alphaVals, alphaArgs);
+		}
 		
-		return (System.nanoTime()-start)/1e6;
+		if ((todo & ARGMAX) != 0 && (todo & MARGINALS) == 0) {
+			marginalVals = ArrayUtil.ensureCapacity(marginalVals, lattice.getNumEdges());
+			// the final edges of sum-product marginals need the backward pass
+			if (!viterbi.computeFinalEdgeMarginals(lattice, alphaVals, marginalVals))
+				todo |= BACKWARD | MARGINALS;
+		}
+		
+		if ((todo & BACKWARD) != 0) {
+			betaVals = ArrayUtil.ensureCapacity(betaVals, lattice.getNumStates());
+			betaArgs = ArrayUtil.ensureCapacity(betaArgs, lattice.getNumStates());
+			viterbi.computeBeta(lattice, betaVals, betaArgs);
+		}
+		
+		if ((todo & MARGINALS) != 0) {
+			marginalVals = ArrayUtil.ensureCapacity(marginalVals, lattice.getNumEdges());
+			viterbi.computeEdgeMarginals(lattice, alphaVals, betaVals, marginalVals);
+		}
+		
+		// the witnesses are filled in by the caller, so they are reset every time 
+		if ((request & WITNESSES) != 0)
+			witnessCount = ArrayUtil.ensureCapacityReset(witnessCount, lattice.getNumEdges());
+		
+		inferenceDone |= todo & ~WITNESSES;
+		
+		double elapsed = (System.nanoTime()-start)/1e6;
+		inferenceTime += elapsed;
+		return elapsed;
 	}
 	
 	@Override
@@ -292,7 +425,10 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			throw new RuntimeException("Order is a required parameter for NGram Models!!");
 		
 		if (viterbi == null)
-			viterbi = new ViterbiMaxSum();
+			viterbi = (filterTopK > 0) ? new ViterbiKBest(filterTopK) : new ViterbiMaxSum();
+		
+		if (filterTopK > 0 && !(viterbi instanceof ViterbiKBest))
+			throw new RuntimeException("filterTopK requires viterbi to be a ViterbiKBest");
 		
 		Corpus c = opts.corpus;
 		
@@ -309,6 +445,9 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		POSAlphabet.lookupIndex(NULLTAG);
 		POSAlphabet.stopGrowth();
 		stateAlphabet = POSAlphabet;
+		if (sparseNGramIDs && opts.ngramIDs == null)
+			opts.ngramIDs = new NGramCodec.SparseIDs(POSAlphabet.size());
+		codec = createCodec(sparseNGramIDs ? opts.ngramIDs : null);
 		
 		FULL_NULL_STATE = computeNullState(order);
 		
@@ -326,16 +465,51 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	}
 	
 	/**
-	 * Returns (\# of labels)^p; for use in state mappings.
+	 * Returns (\# of labels)^p, the number of possible p-gram IDs; for use in state mappings.
+	 * Sparse IDs are below it too, so it is capped at Integer.MAX_VALUE.
 	 * 
 	 * @param p
 	 * @return
 	 */
 	public int pow(int p) {
-		int r = 1;
-		for (int i = 0; i < p; i++)
-			r *= POSAlphabet.size();			
-		return r;
+		return (int) Math.min(codec.size(p), Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Creates the codec for the n-gram IDs of this model; the IDs of the edges, which are 
+	 * (order+1)-grams, must fit in an int.
+	 * 
+	 * @param sparseIDs
+	 *  the dictionaries of sparse IDs, if sparseNGramIDs
+	 */
+	protected NGramCodec createCodec(NGramCodec.SparseIDs sparseIDs) {
+		
+		NGramCodec c = new NGramCodec(POSAlphabet.size(), order+1, padNGramIDs, sparseIDs);
+		if (!c.isSparse() && c.pow(order+1) > Integer.MAX_VALUE)
+			throw new RuntimeException((order+1) + "-grams over " + c.getBase() + " tags do not fit in an int; use sparseNGramIDs");
+		return c;
+	}
+	
+	public NGramCodec getCodec() { return codec; }
+	
+	/**
+	 * For a model read from a file: makes it use the sparse n-gram IDs of the cascade in opts,
+	 * adding those it was saved with, so that it agrees with the other models, whether they were 
+	 * read from files or not. Does nothing without sparseNGramIDs.
+	 */
+	public void shareSparseIDs(Options opts) {
+		
+		if (!sparseNGramIDs)
+			return;
+		
+		NGramCodec.SparseIDs ids = codec.getSparseIDs();
+		if (opts.ngramIDs == null)
+			opts.ngramIDs = ids;
+		else if (opts.ngramIDs != ids) {
+			opts.ngramIDs.merge(ids);
+			codec = createCodec(opts.ngramIDs);
+		}
+		FULL_NULL_STATE = computeNullState(order);
 	}
 	
 	/**
@@ -354,7 +528,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (n == 0)
 			throw new RuntimeException("0-gram is an undefined N-gram!");
 		
-		int ngramID = 0;
+		ngramTags = ArrayUtil.ensureCapacity(ngramTags, n);
 		
 		// compute n-gram id 
 		for (int p = 0; p < n; p++) {					
@@ -364,10 +538,10 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			else symbol = POSAlphabet.lookupIndex(tags[pos-p]);
 			
 			// given that symbol at point in history p....
-			ngramID += symbol * pow(n-p-1); 
+			ngramTags[p] = symbol; 
 		}
 		
-		return ngramID;
+		return (int) codec.encode(ngramTags, n);
 	}
 
 	/**
@@ -378,7 +552,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (n >= order)
 			throw new UnsupportedOperationException("n = " + n + " is not lower than order " + order);
 		
-		return state / pow(order-n); // note: integer division means floor
+		return (int) codec.prefix(state, order, n);
 	}
 	
 	/**
@@ -392,12 +566,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		int leftState = (leftIdx == -1) ? computeNullState(order) : lattice.getStateID(leftIdx);
 		int rightState = (rightIdx == -1) ? computeNullState(order) : lattice.getStateID(rightIdx);
 				
-		int numLabels = POSAlphabet.size();
-		int suffix = leftState % numLabels;
-	
-		int id = rightState * numLabels + suffix;
-		
-		return id; 
+		return (int) codec.join(leftState, rightState, order); 
 	}
 
 
@@ -406,13 +575,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	 */
 	public int computeNullState(int o) {
 
-		int symbol = POSAlphabet.lookupIndex(NULLTAG);
-		int id = 0;
-		
-		for (int i = 0; i < o; i++) 
-			id += symbol * pow(o-i-1);
-		
-		return id;
+		return (int) codec.repeat(POSAlphabet.lookupIndex(NULLTAG), o);
 	}
 
 	/**
@@ -431,19 +594,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (n < 2)
 			return ngramID;
 		
-		int state;
-	
-		offset = n - offset - 1;
-		
-		// current state
-		if (offset == 0)
-			state = ngramID % pow(1);
-		else {
-			int id = (int)(ngramID / pow(offset));
-			state = id % pow(1);
-		}
-			
-		return state;
+		return codec.tag(ngramID, n, offset);
 		
 	}
 	
@@ -455,67 +606,176 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		// assume marginalVals have already been computed
 		computeEdgeMarginals(lattice, w);
 		
+		if (filterTopK > 0)
+			mask = computeTopPathMask(lattice, w, mask);
+		
 		lattice.edgeScores = marginalVals;
 		lattice.computeEdgeMeanMax();
 		
+		if (filterTopK <= 0)
+			mask = computeEdgeFilter(lattice, alpha, mask);
+
+		// don't prune truth during training
+		if (isTraining) {
+			for (int idx : lattice.findEdgeIdx(getTruthStates(lattice.seq), true))
+				mask[idx] = true;
+		}
+		
+		return mask;
+	}
+
+	/**
+	 * Marks in keep the edges on the filterTopK best paths, and only those. The paths are traced 
+	 * over the edge scores, so this restores them (reusing the inference done for the lattice, which
+	 * includes the marginals) and
+	 * then sets lattice.edgeScores back to the marginals. Reuses keep if it is large enough.
+	 */
+	private boolean [] computeTopPathMask(Lattice lattice, Weights w, boolean [] keep) {
+		
+		keep = ArrayUtil.ensureCapacity(keep, lattice.getNumEdges());
+		Arrays.fill(keep, 0, lattice.getNumEdges(), false);
+		
+		computeInference(lattice, w, MARGINALS);
+		((ViterbiKBest) viterbi).markTopPathEdges(lattice, filterTopK, keep);
+		lattice.edgeScores = marginalVals;
+		
+		return keep;
+	}
+	
+	/**
+	 * Marks in keep the edges whose marginals pass the threshold given by alpha and, if 
+	 * maxPerPosition is set, the cap of their position (see computeCapMask). Edges alone at their
+	 * position are always kept. Expects lattice.edgeScores to be the marginals, with their mean 
+	 * and max computed. Reuses keep if it is large enough.
+	 */
+	private boolean [] computeEdgeFilter(Lattice lattice, double alpha, boolean [] keep) {
+		
 		double threshold = useAlphaAsThreshold ? alpha : ((1-alpha)*lattice.meanEdgeScore + alpha*lattice.maxEdgeScore);
 		if (Double.isNaN(threshold))
 			throw new RuntimeException("threshold has become NaN, cannot proceed");
 		
-		boolean singleEdgePruned = false;
+		if (maxPerPosition > 0)
+			return computeCapMask(lattice, marginalVals, new double[] {threshold}, maxPerPosition, true, keep);
+		
+		keep = ArrayUtil.ensureCapacity(keep, lattice.getNumEdges());
 		for (int pos = 0; pos <= lattice.length(); pos++) {
 			int start = lattice.getEdgeOffset(pos);
 			int end = lattice.getEdgeOffset(pos+1);
-
+			
 			// only if there's more than one edge at a given position can we prune
-			int numEdges = end-start;
-			if (numEdges == 1) {
-				mask[start] = true; //(lattice.edgeScores[start] >= threshold); 
-			} else {
-				for (int idx = start; idx < end; idx++)  
-					mask[idx] = lattice.edgeScores[idx] > threshold;
-			}
-				
+			for (int idx = start; idx < end; idx++)  
+				keep[idx] = (end-start == 1) || marginalVals[idx] > threshold;
 		}
+		return keep;
+	}
 
+	/**
+	 * Thresholds the edge marginals as computeFilterMask does, adding each surviving edge directly
+	 * to the LatticeBuilder as a state of the next lattice, as generateValidStates does. 
+	 * Falls back to the two passes for filterTopK, which needs a mask, and for next models whose 
+	 * states are not the edges of this one.
+	 */
+	@Override
+	public Lattice filterAndExpand(Lattice lattice, Weights w, double alpha, boolean isTraining, 
+			CascadeModel next) {
+		
+		if (filterTopK > 0 || !next.expandsBaseEdges() || !(next instanceof NOrderPOS))
+			return super.filterAndExpand(lattice, w, alpha, isTraining, next);
+		
+		checkSameCodec(this, (NOrderPOS) next);
+		computeEdgeMarginals(lattice, w);
+		
+		lattice.edgeScores = marginalVals;
+		lattice.computeEdgeMeanMax();
+		
+		mask = computeEdgeFilter(lattice, alpha, mask);
+		
 		// don't prune truth during training
-		if (isTraining) {
-			for (int idx : lattice.findEdgeIdx(getTruthStates(lattice.seq), true))
-				mask[idx] = true;
+		int [] truthEdgeIdx = isTraining ? lattice.findEdgeIdx(getTruthStates(lattice.seq), true) : null;
+		
+		LatticeBuilder builder = LatticeBuilder.get();
+		builder.reset();
+		builder.beginEdgeStates(lattice.getNumEdges());
+		
+		int [] statePosOffsets = new int[lattice.length() + 1];
+		
+		for (int pos = 0; pos <= lattice.length(); pos++) {
+			int start = lattice.getEdgeOffset(pos);
+			int end = lattice.getEdgeOffset(pos+1);
+			int truth = (truthEdgeIdx != null) ? truthEdgeIdx[pos] : Lattice.NULL_IDX;
+			
+			boolean allPruned = true;
+			for (int idx = start; idx < end; idx++) {
+				if (mask[idx] || idx == truth) {
+					// the final (state, null) edges are not states
+					if (pos < lattice.length())
+						builder.addEdgeState(idx, computeNGramIDFromEdge(lattice, idx), marginalVals[idx]);
+					allPruned = false;
+				}
+			}
+			
+			if (allPruned)
+				throw new RuntimeException("lattice is broken; all edges at position " + pos + " have been pruned");
+			
+			if (pos < lattice.length())
+				statePosOffsets[pos + 1] = builder.getNumStates();
 		}
 		
-		return mask;
+		return ((NOrderPOS) next).computeExpandedFeatures(new Lattice(lattice, next, builder, statePosOffsets));
+	}
+
+	/**
+	 * The states of a model are the n-gram IDs computed by the model below it (computeNGramIDFromEdge),
+	 * so both must encode n-grams in the same way.
+	 */
+	private static void checkSameCodec(NOrderPOS baseModel, NOrderPOS model) {
+		if (baseModel.codec.getBase() != model.codec.getBase() || baseModel.codec.isSparse() != model.codec.isSparse())
+			throw new RuntimeException("padNGramIDs and sparseNGramIDs must be the same for all the NOrderPOS models of a cascade");
 	}
 
 	public int[] getNextStates(int state) {
 		
+		int nextStates[] = new int[POSAlphabet.size()];
+		getNextStates(state, nextStates);
+		return nextStates;
+	}
+	
+	/**
+	 * Writes the next states of state into nextStates, which must hold at least getNumberOfTags()
+	 * entries, and returns their number.
+	 */
+	public int getNextStates(int state, int [] nextStates) {
+		
 		int numLabels = POSAlphabet.size();
-			
-		// for previous state, we need to know the suffix n-gram						
-		int nextStates[] = new int[numLabels];
 		
 		for (int l = 0; l < numLabels; l++) 
-			nextStates[l] = l * pow(order-1) + computeLowerOrderNGramID(this.order-1, state);										
+			nextStates[l] = (int) codec.next(state, order, l);										
 		
-		return nextStates;
-	
+		return numLabels;
 	}
 	
 	public int[] getPreviousStates(int state) {				
 
+		int prevStates[] = new int[POSAlphabet.size()];
+		getPreviousStates(state, prevStates);
+		return prevStates;
+	}
+	
+	/**
+	 * Writes the previous states of state into prevStates, which must hold at least getNumberOfTags()
+	 * entries, and returns their number.
+	 */
+	public int getPreviousStates(int state, int [] prevStates) {				
+
 		int numLabels = POSAlphabet.size();
 		
 		// for previous state, we need to know the suffix n-gram						
-		int prevStates[] = new int[numLabels];
-
-		int p = pow(order-1);
-		int prefixBlock = state / p; // was floor
-		int suffixId = state - prefixBlock*p;	
+		long suffixId = codec.suffix(state, order, order-1);	
 
 		for (int l = 0; l < numLabels; l++)
-			prevStates[l] = suffixId*numLabels + l; 
+			prevStates[l] = (int) codec.append(suffixId, order-1, l); 
 
-		return prevStates;
+		return numLabels;
 	}
 	
 	public int numPossibleStates() {return pow(order);}
@@ -537,10 +797,15 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		useSupportedFeaturesOnly = in.readBoolean();
 		numPositionFeatures = in.readInt();
 		FULL_NULL_STATE = in.readInt();
+		padNGramIDs = in.readBoolean();
+		sparseNGramIDs = in.readBoolean();
+		tagMinorWeights = in.readBoolean();
+		NGramCodec.SparseIDs sparseIDs = sparseNGramIDs ? NGramCodec.SparseIDs.read(in) : null;
 		
 		POSAlphabet = (Alphabet) in.readObject();
 		POSAlphabet.stopGrowth();
 		stateAlphabet = POSAlphabet;
+		codec = createCodec(sparseIDs);
 		featureAlphabet = (Alphabet) in.readObject();
 		
 		int l = in.readInt();
@@ -564,6 +829,11 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		out.writeBoolean(useSupportedFeaturesOnly);
 		out.writeInt(numPositionFeatures);
 		out.writeInt(FULL_NULL_STATE);
+		out.writeBoolean(padNGramIDs);
+		out.writeBoolean(sparseNGramIDs);
+		out.writeBoolean(tagMinorWeights);
+		if (sparseNGramIDs)
+			codec.getSparseIDs().write(out);
 
 	
 		out.writeObject(POSAlphabet);
@@ -583,8 +853,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 
 	@Override
 	public void generateValidStates(Lattice base, boolean[] mask,
-			TIntArrayList newStateIDs, TDoubleArrayList newStateScores, 
-			int[] newStatePosOffsets) {
+			LatticeBuilder builder, int[] newStatePosOffsets) {
 
 		// ----------------------------------------------------------------------
 		// Pass 1: compute the number of valid states in the graph at each
@@ -592,6 +861,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		// including the filtering.
 		
 		NOrderPOS baseModel = (NOrderPOS) base.model;
+		checkSameCodec(baseModel, this);
 		
 		// note <= here! this is because there are edges from the null state '-1' at the END
 		// of the lattice which count as being at position L (length of lattice)
@@ -606,8 +876,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			// also check for all states at a given position being pruned
 			for (int idx = start; idx < end; idx++) {
 				if (mask[idx]) {
-					newStateIDs.add(baseModel.computeNGramIDFromEdge(base, idx));
-					newStateScores.add(base.edgeScores[idx]);
+					builder.addState(baseModel.computeNGramIDFromEdge(base, idx), base.edgeScores[idx]);
 					allPruned = false;
 				} 
 			}
@@ -624,7 +893,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			}
 			
 			if (pos < base.length())
-				newStatePosOffsets[pos + 1] = newStateIDs.size();
+				newStatePosOffsets[pos + 1] = builder.getNumStates();
 		}
 		
 	}
@@ -638,12 +907,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	 */
 	public long computeNGramIDFromEdge(int leftState, int rightState) {
 
-		long numLabels = stateAlphabet.size();
-		long  suffix = leftState % numLabels;
-	
-		long id = rightState * numLabels + suffix;
-		
-		return id; 
+		return codec.join(leftState, rightState, order); 
 	}
 	/**
 	* Computes corresponding ngram id over a lower order ngram embedded within a higher order ngram.
@@ -653,7 +917,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (n >= order)
 			throw new UnsupportedOperationException("n = " + n + " is not lower than order " + order);
 		
-		return state / pow(order-n); // note: integer division means floor
+		return codec.prefix(state, order, n);
 	}
 	
 	/**
@@ -675,27 +939,7 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (n < 2)
 			return (int)ngramID;
 		
-		long state;
-	
-		offset = n - offset - 1;
-		
-		// current state
-		if (offset == 0) {
-			state = ngramID % pow(1);
-//			System.out.println(ngramID + " " + pow(1) + " " + state + " " + ((int)state));
-		}
-		else {
-			long id = (ngramID / pow(offset));
-			state = id % pow(1);
-		}
-		
-		if ((int)state < 0) {
-			System.out.println(state);
-			System.out.printf("offset=%d, ngramID=%d, pow(1)=%d, pow(offset)=%d\n", offset, ngramID, pow(1), pow(offset));
-			throw new RuntimeException("BAD STATE DETECTED");
-		}
-		
-		return (int)state;
+		return codec.tag(ngramID, n, offset);
 		
 	}
 	
@@ -703,11 +947,34 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	public int[] getNextStates(Sequence seq, int pos, int state) {
 		return getNextStates(state);
 	}
+	
+	@Override
+	public int getNextStates(Sequence seq, int pos, int state, int [] states) {
+		return getNextStates(state, states);
+	}
+	
+	@Override
+	public int getMaxNumTransitions() {
+		return POSAlphabet.size();
+	}
+	
+	/**
+	 * Each unpruned edge of the base lattice becomes an n-gram state (see generateValidStates).
+	 */
+	@Override
+	public boolean expandsBaseEdges() {
+		return true;
+	}
 
 	@Override
 	public int[] getPreviousStates(Sequence seq, int pos, int state) {
 		return getPreviousStates(state);
 	}
+	
+	@Override
+	public int getPreviousStates(Sequence seq, int pos, int state, int [] states) {
+		return getPreviousStates(state, states);
+	}
 
 	@Override
 	public void scoreLatticeEdges(Weights w, Lattice lattice) {
@@ -729,15 +996,56 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	@Override
 	public Lattice expandLattice(Lattice lattice, boolean[] mask) {		
 				
-		Lattice newLattice = new Lattice(lattice, this, mask);
+		return computeExpandedFeatures(new Lattice(lattice, this, mask));
+	}
+	
+	/**
+	 * Computes (or defers, see lazyFeatures) the features of a newly expanded lattice.
+	 */
+	protected Lattice computeExpandedFeatures(Lattice newLattice) {
+		
+		if (lazyFeatures) {
+			newLattice.featuresPending = true;
+			newLattice.baseMarginals = newLattice.stateScores;
+			
+			// features seen for the first time must still be added to the alphabet now,
+			// before the weights are sized for training
+			if (!featureAlphabet.growthStopped()) {
+				boolean computeOnly = featureGen.isComputeOnly();
+				featureGen.setComputeOnly(true);
+				computeFeatures(newLattice, newLattice.baseMarginals);
+				featureGen.setComputeOnly(computeOnly);
+				newLattice.fvPos = newLattice.fvState = newLattice.fvEdge = null;
+			}
+		} else
+			computeFeatures(newLattice, newLattice.stateScores);
+		
+		return newLattice;
+	}
+	
+	/**
+	 * Computes all feature vectors of a lattice, given the marginals of its base lattice.
+	 */
+	protected void computeFeatures(Lattice lattice, double [] marginals) {
 		
 		if (usePositionFeatures)
-			newLattice.fvPos = getPositionFeatures(newLattice);
+			lattice.fvPos = getPositionFeatures(lattice);
 		
-		newLattice.fvState = getStateFeatures(newLattice);
-		newLattice.fvEdge = getEdgeFeatures(newLattice);
+		lattice.fvState = getStateFeatures(lattice, marginals);
+		lattice.fvEdge = getEdgeFeatures(lattice);
+	}
+	
+	/**
+	 * Computes the features of lattices that were expanded with lazyFeatures.
+	 */
+	@Override
+	public void prepareForLattice(Lattice lattice) {
+		super.prepareForLattice(lattice);
 		
-		return newLattice;
+		if (lattice.featuresPending) {
+			computeFeatures(lattice, lattice.baseMarginals);
+			lattice.featuresPending = false;
+		}
 	}
 
 	@Override
@@ -751,11 +1059,20 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 		if (addHammingLoss)
 			truth = getTruth(lattice.seq);
 		
+		// the NULL tag has no position weights
+		int T = stateAlphabet.size()-1;
+		boolean tagMinor = usePositionFeatures && tagMinorWeights;
+		if (tagMinor)
+			tagScores = ArrayUtil.ensureCapacity(tagScores, T);
+		
 		for (int pos = 0; pos < lattice.length(); pos++){
 			
 			int start = lattice.getStateOffset(pos);
 			int end = lattice.getStateOffset(pos+1);
 			
+			if (tagMinor)
+				w.scoreAll(lattice.fvPos[pos], 0, T, tagScores, T);
+			
 			for (int idx = start; idx < end; idx++) {
 
 				int ngram = lattice.getStateID(idx);
@@ -763,7 +1080,9 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 				
 				int offset = state*numPositionFeatures;
 				
-				if (usePositionFeatures)
+				if (tagMinor)
+					lattice.stateScores[idx] += tagScores[state];
+				else if (usePositionFeatures)
 					lattice.stateScores[idx] += w.score(lattice.fvPos[pos], offset);
 
 				if (lattice.fvState != null)
@@ -782,6 +1101,13 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 	 * By default, the ONLY state features are marginals from the previous lattice
 	 */
 	public FeatureVector[] getStateFeatures(Lattice lattice) {
+		return getStateFeatures(lattice, lattice.stateScores);
+	}
+	
+	/**
+	 * Computes state features, with quintile features of the given marginals (if not null).
+	 */
+	public FeatureVector[] getStateFeatures(Lattice lattice, double [] marginals) {
 		
 		FeatureVector fv [] = new FeatureVector[lattice.getNumStates()];
 		
@@ -794,13 +1120,13 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			int end = lattice.getStateOffset(pos+1);
 
 			//compute marginal quintiles 
-			if (lattice.stateScores != null)
-				featureGen.computeQuintiles(lattice.stateScores, lattice.getStateOffset(pos), lattice.getStateOffset(pos+1), quintiles[pos]);
+			if (marginals != null)
+				featureGen.computeQuintiles(marginals, lattice.getStateOffset(pos), lattice.getStateOffset(pos+1), quintiles[pos]);
 
 			for (int idx = start; idx < end; idx++) {
 				
-				if (lattice.stateScores != null)
-					featureGen.addQuintileFeatures(margRightString, quintiles[pos], lattice.stateScores[idx]);
+				if (marginals != null)
+					featureGen.addQuintileFeatures(margRightString, quintiles[pos], marginals[idx]);
 				
 				
 				for (int o = 1; o <= order; o++) {
@@ -877,7 +1203,9 @@ public class NOrderPOS extends NOrderModel implements Externalizable {
 			
 			int pos = lattice.findStatePosOffset(stateidx);
 			
-			if (usePositionFeatures)
+			if (usePositionFeatures && tagMinorWeights)
+				w.increment(lattice.fvPos[pos], state, stateAlphabet.size()-1, rate);
+			else if (usePositionFeatures)
 				w.increment(lattice.fvPos[pos], offset, rate);
 			w.increment(lattice.fvState[stateidx], N, rate);
 		}
@@ -12,8 +12,6 @@ import java.util.Arrays;
 import java.util.regex.Pattern;
 
 
-import gnu.trove.TDoubleArrayList;
-import gnu.trove.TIntArrayList;
 import cascade.features.FeatureGenerator;
 import cascade.features.FeatureVector;
 import cascade.features.Weights;
@@ -22,6 +20,7 @@ import cascade.io.Corpus;
 import cascade.io.SentenceInstance;
 import cascade.io.Sequence;
 import cascade.lattice.Lattice;
+import cascade.lattice.LatticeBuilder;
 import cascade.lattice.ZeroOrderLattice;
 import cascade.learn.FilterTradeoffStatistics;
 import cascade.learn.GeneralizationStatistics;
@@ -45,7 +44,7 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 
 	// FIXME: this doesn't seem to be used anywhere.. maybe it should go away?
 	private int maxPrefixLength = 4; 
@@ -55,8 +54,12 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 
 	// temporary buffers to avoid re-allocation:
 	double [] scores = null; // scores / marginals buffer
+	double [] tagScores = null; // scores of every tag at a position, if tagMinorWeights
 	boolean [] mask = null;
 	
+	// states kept by a capped filter, for the statistics (see computeCapMask)
+	private boolean [] capMask = null;
+	
 	public void init(Options opts){
 		super.init(opts);
 		
@@ -200,10 +203,16 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 		double [] thresholds = new double[lattice.length()];
 		for (int pos = 0; pos < max.length; pos++) 
 			thresholds[pos] = (1-alpha)*mean[pos] + alpha*max[pos];
-
-		stats.totalPruneEff += LossFunctions.computeStateEfficiencyLoss(lattice, lattice.stateScores, thresholds);
 		
-		double pruningMistakes = LossFunctions.computeFilterLoss(lattice, lattice.stateScores, thresholds, truthIdx);
+		double pruningMistakes;
+		if (maxPerPosition > 0) {
+			capMask = computeCapMask(lattice, lattice.stateScores, thresholds, maxPerPosition, false, capMask);
+			stats.totalPruneEff += LossFunctions.computeStateEfficiencyLoss(lattice, capMask);
+			pruningMistakes = LossFunctions.computeFilterLoss(lattice, capMask, truthIdx);
+		} else {
+			stats.totalPruneEff += LossFunctions.computeStateEfficiencyLoss(lattice, lattice.stateScores, thresholds);
+			pruningMistakes = LossFunctions.computeFilterLoss(lattice, lattice.stateScores, thresholds, truthIdx);
+		}
 		stats.numSequencePruneMistakes += (pruningMistakes > 0) ? 1 : 0;
 		stats.totalPruneError += pruningMistakes;
 	}
@@ -230,9 +239,26 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 			
 			for (int pos = 0; pos < thresholds.length; pos++) 
 				thresholds[pos] = (1-alpha)*mean[pos] + alpha*max[pos];
-
-			stats.effs[i] += LossFunctions.computeStateEfficiencyLoss(lattice, scores, thresholds);
-			stats.errs[i] += LossFunctions.computeFilterLoss(lattice, scores, thresholds, truthIdx);
+			
+			if (maxPerPosition > 0) {
+				capMask = computeCapMask(lattice, scores, thresholds, maxPerPosition, false, capMask);
+				stats.effs[i] += LossFunctions.computeStateEfficiencyLoss(lattice, capMask);
+				stats.errs[i] += LossFunctions.computeFilterLoss(lattice, capMask, truthIdx);
+			} else {
+				stats.effs[i] += LossFunctions.computeStateEfficiencyLoss(lattice, scores, thresholds);
+				stats.errs[i] += LossFunctions.computeFilterLoss(lattice, scores, thresholds, truthIdx);
+			}
+		}
+		
+		// for each cap, the cap alone
+		if (stats.caps != null) {
+			double [] noThreshold = {Double.NEGATIVE_INFINITY};
+			for (int i = 0; i < stats.caps.length; i++) {
+				capMask = computeCapMask(lattice, scores, noThreshold, stats.caps[i], false, capMask);
+				
+				stats.capEffs[i] += LossFunctions.computeStateEfficiencyLoss(lattice, capMask);
+				stats.capErrs[i] += LossFunctions.computeFilterLoss(lattice, capMask, truthIdx);
+			}
 		}
 		
 		stats.numSequences++;
@@ -255,14 +281,14 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 
 		int [] truth = getTruth(lattice.seq);
 		
+		computeStateFilter(lattice, alpha, mean, max, mask);
+		
 		for (int pos = 0; pos < lattice.length(); pos++) {
 			
 			int start = lattice.getStateOffset(pos);
 			int end = lattice.getStateOffset(pos+1);
 
-			double threshold = (1-alpha)*mean[pos] + alpha*max[pos];
 			for (int idx = start; idx < end; idx++) {
-				mask[idx] = (scores[idx] > threshold);
 				if (isTraining && (lattice.getStateID(idx) == truth[pos]))
 					mask[idx] = true;
 			}
@@ -277,6 +303,78 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 	}
 	
 
+	/**
+	 * Marks in keep the states whose scores pass the threshold given by alpha at their position 
+	 * and, if maxPerPosition is set, its cap (see computeCapMask).
+	 */
+	private void computeStateFilter(Lattice lattice, double alpha, double [] mean, double [] max, boolean [] keep) {
+		
+		double [] thresholds = new double[lattice.length()];
+		for (int pos = 0; pos < thresholds.length; pos++) 
+			thresholds[pos] = (1-alpha)*mean[pos] + alpha*max[pos];
+		
+		if (maxPerPosition > 0) {
+			computeCapMask(lattice, scores, thresholds, maxPerPosition, false, keep);
+			return;
+		}
+		
+		for (int pos = 0; pos < lattice.length(); pos++)
+			for (int idx = lattice.getStateOffset(pos); idx < lattice.getStateOffset(pos+1); idx++)
+				keep[idx] = (scores[idx] > thresholds[pos]);
+	}
+
+	/**
+	 * Thresholds the state scores as computeFilterMask does, adding each surviving state directly 
+	 * to the LatticeBuilder as a state of the next lattice, as FirstOrderPOS.generateValidStates 
+	 * does. Falls back to the two passes for next models whose states are not the states of this one.
+	 */
+	@Override
+	public Lattice filterAndExpand(Lattice lattice, Weights w, double alpha, boolean isTraining, 
+			CascadeModel next) {
+		
+		if (!(next instanceof FirstOrderPOS))
+			return super.filterAndExpand(lattice, w, alpha, isTraining, next);
+		
+		scores = ArrayUtil.ensureCapacity(scores, lattice.getNumStates());
+		lattice.stateScores = scores;
+		
+		// score every state in the lattice
+		scoreLatticeStates(w, lattice);
+
+		// compute mean and max at each position		
+		double [] mean = new double[lattice.length()];
+		double [] max = new double[lattice.length()];
+		lattice.computePerPositionStateMeanMax(mean, max);
+
+		int [] truth = getTruth(lattice.seq);
+		
+		mask = ArrayUtil.ensureCapacity(mask, lattice.getNumStates());
+		computeStateFilter(lattice, alpha, mean, max, mask);
+		
+		LatticeBuilder builder = LatticeBuilder.get();
+		builder.reset();
+		
+		int [] statePosOffsets = new int[lattice.length() + 1];
+		
+		for (int pos = 0; pos < lattice.length(); pos++) {
+			
+			int start = lattice.getStateOffset(pos);
+			int end = lattice.getStateOffset(pos+1);
+
+			for (int idx = start; idx < end; idx++) {
+				if (mask[idx] || (isTraining && (lattice.getStateID(idx) == truth[pos])))
+					builder.addState(lattice.getStateID(idx), scores[idx]);
+			}
+			
+			if (builder.getNumStates() == statePosOffsets[pos])
+				throw new RuntimeException("Broken lattice after pruning: all states at position " + pos + " would be pruned");
+			
+			statePosOffsets[pos+1] = builder.getNumStates();
+		}
+		
+		return ((FirstOrderPOS) next).computeExpandedFeatures(new Lattice(lattice, next, builder, statePosOffsets));
+	}
+
 	//@Override
 	public void readExternal(ObjectInput in) throws IOException,
 			ClassNotFoundException {
@@ -287,6 +385,7 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 		POSAlphabet = (Alphabet) in.readObject();
 		featureAlphabet = (Alphabet) in.readObject();
 		maxPrefixLength = in.readInt();
+		tagMinorWeights = in.readBoolean();
 		
 		featureGen = new ZeroOrderPOSFeatures();
 		featureGen.setComputeOnly(true);
@@ -298,13 +397,13 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 		out.writeObject(POSAlphabet);
 		out.writeObject(featureAlphabet);
 		out.writeInt(maxPrefixLength);
+		out.writeBoolean(tagMinorWeights);
 
 	}
 
 	@Override
 	public void generateValidStates(Lattice base, boolean[] mask,
-			TIntArrayList newStateIDs, TDoubleArrayList newStateScores,
-			int[] newStatePosOffsets) {
+			LatticeBuilder builder, int[] newStatePosOffsets) {
 		throw new UnsupportedOperationException("This is a base model and does not expand lattices");
 	}
 
@@ -343,16 +442,27 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 	public void scoreLatticeStates(Weights w, Lattice lattice) {
 
 		int N = featureAlphabet.size();
+		int T = POSAlphabet.size();
+		
+		if (tagMinorWeights)
+			tagScores = ArrayUtil.ensureCapacity(tagScores, T);
 		
 		for (int pos = 0; pos < lattice.length(); pos++){
 			int start = lattice.getStateOffset(pos);
 			int end = lattice.getStateOffset(pos+1);
+			
+			if (tagMinorWeights)
+				w.scoreAll(lattice.fv[pos], 0, T, tagScores, T);
+			
 			for (int idx = start; idx < end; idx++) {
 
 				int state = lattice.getStateID(idx);
 				int offset = state*N;
 				
-				lattice.stateScores[idx] = w.score(lattice.fv[pos], offset);
+				if (tagMinorWeights)
+					lattice.stateScores[idx] = tagScores[state];
+				else
+					lattice.stateScores[idx] = w.score(lattice.fv[pos], offset);
 			}
 		}
 	}
@@ -362,7 +472,10 @@ public class ZeroOrderPOS extends ZeroOrderModel implements Externalizable {
 		
 		int pos = lattice.findStatePosOffset(idx);
 		
-		w.increment(lattice.fv[pos], lattice.getStateID(idx)*featureAlphabet.size(), rate);
+		if (tagMinorWeights)
+			w.increment(lattice.fv[pos], lattice.getStateID(idx), POSAlphabet.size(), rate);
+		else
+			w.increment(lattice.fv[pos], lattice.getStateID(idx)*featureAlphabet.size(), rate);
 	}
 
 	@Override
@@ -1,6 +1,7 @@
 package cascade.programs;
 
 import cascade.io.Corpus;
+import cascade.model.NGramCodec;
 
 
 /**
@@ -38,6 +39,23 @@ public class Options  {
 	public boolean alwaysPrecomputeFirst = false;
 	public boolean loadFirstIntoRAM = false;
 	public boolean precomputeFirstOnlyIfNonExistent = true;
+	
+	/**
+	 * If true, every expanded lattice is re-validated against its model after construction (slow).
+	 */
+	public boolean debugLattices = false;
+	
+	/**
+	 * If true, filter training reads each lattice into the previous one, reusing its arrays 
+	 * instead of allocating a new lattice for every sentence.
+	 */
+	public boolean recycleLattices = false;
+	
+	/**
+	 * The sparse n-gram IDs shared by the models of this cascade, if they use them (see 
+	 * NOrderPOS.sparseNGramIDs). Set up by the models, not by the configuration.
+	 */
+	public NGramCodec.SparseIDs ngramIDs = null;
 
 	
 	/**
@@ -59,6 +59,7 @@ public class TrainTagger {
 		boolean [] trainModel = optparse.getDoTraining();
 
 		Corpus corpus = options.corpus;
+		corpus.setModels(models);
 
 		// read in the first level of data from disk	
 		String [] partitions = corpus.getPartitions();
@@ -314,8 +315,9 @@ public class TrainTagger {
 				RunTimeEstimator est = new RunTimeEstimator(corpus.train[partition].length, options.trainUpdatePercentage);
 
 				double elapsed = 0;
+				Lattice lattice = null;
 				while (corpus.hasMoreLattices()) {
-					Lattice lattice = corpus.nextLattice();
+					lattice = corpus.nextLattice(options.recycleLattices ? lattice : null);
 					model.prepareForLattice(lattice);
 
 					// run weight update procedure
@@ -339,7 +341,7 @@ public class TrainTagger {
 				// run evaluation pass on development set
 				corpus.switchToDevel(partition, level);					
 
-				FilterTradeoffStatistics tradeoff = new FilterTradeoffStatistics();
+				FilterTradeoffStatistics tradeoff = new FilterTradeoffStatistics(model.tradeoffCaps);
 				GeneralizationStatistics genstats = new GeneralizationStatistics(alpha); 
 
 				// Average weights and compute norm
@@ -347,7 +349,7 @@ public class TrainTagger {
 				double wNorm = w.getNorm();
 
 				while (corpus.hasMoreLattices()) {
-					Lattice lattice = corpus.nextLattice();
+					lattice = corpus.nextLattice(options.recycleLattices ? lattice : null);
 					model.prepareForLattice(lattice);
 
 					model.addGeneralizationStats(lattice, w, genstats, alpha.doubleValue());							
@@ -359,6 +361,8 @@ public class TrainTagger {
 				genstats.average();
 
 				tradeoff.findBestAlpha(model.maxerr, model.maxalpha); //alpha.doubleValue());
+				if (tradeoff.caps != null)
+					tradeoff.findBestCap(model.maxerr);
 
 				String logstr = t + "," + mistakes + "," + wNorm + "," 
 				+ ArrayUtil.joinDoubleFields(genstats, GeneralizationStatistics.writeFields) + ","
@@ -431,7 +435,7 @@ public class TrainTagger {
 		// also compute test-set performance stats 
 		// (but only for full partition...test set performance is meaningless for others)
 
-		FilterTradeoffStatistics tradeoff = new FilterTradeoffStatistics();
+		FilterTradeoffStatistics tradeoff = new FilterTradeoffStatistics(model.tradeoffCaps);
 		GeneralizationStatistics genstats = new GeneralizationStatistics(w.alpha); 
 
 		if (isFullPartition)
@@ -449,13 +453,18 @@ public class TrainTagger {
 
 			boolean isFutureTrainingSet = !isFullPartition;
 
-			boolean [] mask = model.computeFilterMask(lattice, w.weights, w.alpha, isFutureTrainingSet);
-
-			Lattice newLattice = models[level+1].expandLattice(lattice, mask);
+			// filter and expand in one pass, unless the mask itself is cached
+			boolean [] mask = null;
+			Lattice newLattice;
+			if (corpus.saveMasksOnly) {
+				mask = model.computeFilterMask(lattice, w.weights, w.alpha, isFutureTrainingSet);
+				newLattice = models[level+1].expandLattice(lattice, mask);
+			} else
+				newLattice = model.filterAndExpand(lattice, w.weights, w.alpha, isFutureTrainingSet, models[level+1]);
 		
 			elapsed += System.nanoTime()-startTime;
 
-			corpus.saveLatticeToCache(newLattice);
+			corpus.saveLatticeToCache(newLattice, lattice, mask);
 
 			if (isFullPartition) {
 				model.addGeneralizationStats(lattice, w.weights, genstats, w.alpha);
@@ -479,6 +488,8 @@ public class TrainTagger {
 			
 			options.print(2, String.format("looking for min with err cap: %g, maxalpha %g\n", model.maxerr, w.alpha));
 			tradeoff.findBestAlpha(model.maxerr, w.alpha);
+			if (tradeoff.caps != null)
+				tradeoff.findBestCap(model.maxerr);
 
 			options.println(0,genstats.summarize());
 
@@ -499,9 +510,14 @@ public class TrainTagger {
 			while (corpus.hasMoreLattices()) {
 				Lattice lattice = corpus.nextLattice();
 				model.prepareForLattice(lattice);
-				boolean [] mask = model.computeFilterMask(lattice, w.weights, w.alpha, false);
-				Lattice newLattice = models[level+1].expandLattice(lattice, mask);
-				corpus.saveLatticeToCache(newLattice);
+				boolean [] mask = null;
+				Lattice newLattice;
+				if (corpus.saveMasksOnly) {
+					mask = model.computeFilterMask(lattice, w.weights, w.alpha, false);
+					newLattice = models[level+1].expandLattice(lattice, mask);
+				} else
+					newLattice = model.filterAndExpand(lattice, w.weights, w.alpha, false, models[level+1]);
+				corpus.saveLatticeToCache(newLattice, lattice, mask);
 			}
 			corpus.closeNewLatticeCache();
 		}
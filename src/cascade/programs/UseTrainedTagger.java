@@ -182,9 +182,7 @@ public class UseTrainedTagger {
 
 
 
-			boolean [] mask = model.computeFilterMask(lattice, w, a, false);
-			
-			Lattice newLattice = models[level+1].expandLattice(lattice, mask);
+			Lattice newLattice = model.filterAndExpand(lattice, w, a, false, models[level+1]);
 			lattices[level+1] = newLattice;
 			lattices[level+1].stateScores = null;
 			
@@ -198,7 +196,7 @@ public class UseTrainedTagger {
 		model.addGeneralizationStats(lattices[level], weights[level], genstats[level], alpha[level]);
 		
 		if(model instanceof NOrderPOS){
-			((NOrderModel) model).computeEdgeMarginals(lattices[level], weights[level]);
+			((NOrderModel) model).computeInference(lattices[level], weights[level], NOrderModel.ARGMAX);
 			int [] guess = ((NOrderModel) model).computeGuesses(lattices[level]);
 
 //			System.out.print(Arrays.toString(guess) + " --> ");
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import cascade.features.FeatureVector;
@@ -16,6 +17,18 @@ public class ArrayUtil {
 
 	static int GROWTH_FACTOR = 2;
 	
+	/**
+	 * Size in bytes of the blocks used by the bulk readers and writers below.
+	 */
+	static final int BLOCK_SIZE = 8192;
+	
+	private static final ThreadLocal<ByteBuffer> blocks = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(BLOCK_SIZE);
+		}
+	};
+	
 	public static String [] ensureCapacity(String [] x, int newCapacity) {
 		if (x == null || x.length <= newCapacity) {
 			String [] buf = new String[GROWTH_FACTOR*newCapacity];
@@ -151,9 +164,7 @@ public class ArrayUtil {
 		boolean isNull = in.readBoolean();
 		if(isNull) return null;
 		double[] res = new double[in.readInt()];
-		for (int i = 0; i < res.length; i++) {
-			res[i] = in.readDouble();
-		}
+		readDoubles(in, res, res.length);
 		return res;
 	}
 	
@@ -161,7 +172,7 @@ public class ArrayUtil {
 		out.writeBoolean(a==null);
 		if(a==null) return;
 		out.writeInt(a.length);
-		for (int i = 0; i < a.length; i++) out.writeDouble(a[i]);
+		writeDoubles(out, a, a.length);
 	}
 	
 	public static void writeIntArrayAA(DataOutput out, int[][][] a) throws IOException {
@@ -182,7 +193,17 @@ public class ArrayUtil {
 		out.writeBoolean(a==null);
 		if(a==null) return;
 		out.writeInt(a.length);
-		for (int i = 0; i < a.length; i++) out.writeInt(a[i]);
+		writeInts(out, a, a.length);
+	}
+
+	/**
+	 * Writes only the first <b>n</b> elements of <b>a</b>, as if it were an array of length n.
+	 */
+	public static void writeIntArray(DataOutput out, int[] a, int n) throws IOException{
+		out.writeBoolean(a==null);
+		if(a==null) return;
+		out.writeInt(n);
+		writeInts(out, a, n);
 	}
 
 	public static void writeFeatureVectorArray(DataOutput out, FeatureVector[] a) throws IOException{
@@ -217,9 +238,20 @@ public class ArrayUtil {
 		boolean isNull = in.readBoolean();
 		if(isNull) return null;
 		int[] res = new int[in.readInt()];
-		for (int i = 0; i < res.length; i++) {
-			res[i] = in.readInt();
-		}
+		readInts(in, res, res.length);
+		return res;
+	}
+	
+	/**
+	 * Reads an int array into <b>reuse</b> if it is large enough, otherwise into a new array. 
+	 * Hence the result may be longer than the array that was written.
+	 */
+	public static int[] readIntArray(DataInput in, int[] reuse) throws IOException {
+		boolean isNull = in.readBoolean();
+		if(isNull) return null;
+		int n = in.readInt();
+		int[] res = (reuse != null && reuse.length >= n) ? reuse : new int[n];
+		readInts(in, res, n);
 		return res;
 	}
 	
@@ -233,6 +265,159 @@ public class ArrayUtil {
 		return res;
 	}
 	
+	/**
+	 * Reads a feature vector array, reading into the unshared feature vectors of <b>reuse</b> where possible. 
+	 * Unlike readIntArray(in, reuse), the result always has exactly the length that was written.
+	 */
+	public static FeatureVector[] readFeatureVectorArray(DataInput in, FeatureVector[] reuse) throws IOException {
+		boolean isNull = in.readBoolean();
+		if(isNull) return null;
+		int n = in.readInt();
+		FeatureVector[] res = (reuse != null && reuse.length == n) ? reuse : new FeatureVector[n];
+		for (int i = 0; i < n; i++) {
+			if (reuse != null && i < reuse.length && reuse[i] != null && !reuse[i].isShared()) {
+				res[i] = reuse[i];
+				res[i].read(in);
+			} else
+				res[i] = new FeatureVector(in);
+		}
+		return res;
+	}
+	
+	public static void readInts(DataInput in, int[] a, int n) throws IOException {
+		readInts(in, a, 0, n);
+	}
+	
+	/**
+	 * Reads n ints into a starting at offset off, in the same format as n calls to in.readInt(), 
+	 * but a block at a time. 
+	 */
+	public static void readInts(DataInput in, int[] a, int off, int n) throws IOException {
+		if (in instanceof BulkDataInput) {
+			((BulkDataInput) in).readInts(a, off, n);
+			return;
+		}
+		
+		ByteBuffer block = blocks.get();
+		for (int end = off + n; off < end; ) {
+			int len = Math.min(end - off, BLOCK_SIZE / 4);
+			in.readFully(block.array(), 0, len * 4);
+			block.clear();
+			block.asIntBuffer().get(a, off, len);
+			off += len;
+		}
+	}
+	
+	/**
+	 * Reads n doubles into a (see readInts).
+	 */
+	public static void readDoubles(DataInput in, double[] a, int n) throws IOException {
+		if (in instanceof BulkDataInput) {
+			((BulkDataInput) in).readDoubles(a, 0, n);
+			return;
+		}
+		
+		ByteBuffer block = blocks.get();
+		for (int off = 0; off < n; ) {
+			int len = Math.min(n - off, BLOCK_SIZE / 8);
+			in.readFully(block.array(), 0, len * 8);
+			block.clear();
+			block.asDoubleBuffer().get(a, off, len);
+			off += len;
+		}
+	}
+	
+	/**
+	 * Writes the first n ints of a, in the same format as n calls to out.writeInt(), but a block at a time. 
+	 */
+	public static void writeInts(DataOutput out, int[] a, int n) throws IOException {
+		ByteBuffer block = blocks.get();
+		for (int off = 0; off < n; ) {
+			int len = Math.min(n - off, BLOCK_SIZE / 4);
+			block.clear();
+			block.asIntBuffer().put(a, off, len);
+			out.write(block.array(), 0, len * 4);
+			off += len;
+		}
+	}
+	
+	/**
+	 * Writes the first n doubles of a (see writeInts).
+	 */
+	public static void writeDoubles(DataOutput out, double[] a, int n) throws IOException {
+		ByteBuffer block = blocks.get();
+		for (int off = 0; off < n; ) {
+			int len = Math.min(n - off, BLOCK_SIZE / 8);
+			block.clear();
+			block.asDoubleBuffer().put(a, off, len);
+			out.write(block.array(), 0, len * 8);
+			off += len;
+		}
+	}
+
+	/**
+	 * Writes a variable-length int, 7 bits per byte, low bits first; values in 0..127 take a
+	 * single byte, negative values take five.
+	 */
+	public static void writeVarInt(DataOutput out, int v) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+	
+	public static int readVarInt(DataInput in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed variable-length int");
+	}
+	
+	/**
+	 * Writes a variable-length int in zig-zag encoding, so that values of small magnitude
+	 * are short whatever their sign. 
+	 */
+	public static void writeSignedVarInt(DataOutput out, int v) throws IOException {
+		writeVarInt(out, (v << 1) ^ (v >> 31));
+	}
+	
+	public static int readSignedVarInt(DataInput in) throws IOException {
+		int v = readVarInt(in);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Writes a feature vector array in the compact format of FeatureVector.writeCompact.
+	 */
+	public static void writeFeatureVectorArrayCompact(DataOutput out, FeatureVector[] a) throws IOException{
+		writeVarInt(out, a == null ? 0 : a.length + 1);
+		if(a==null) return;
+		for (int i = 0; i < a.length; i++) a[i].writeCompact(out);
+	}
+	
+	/**
+	 * Reads an array written by writeFeatureVectorArrayCompact, reusing feature vectors 
+	 * as in readFeatureVectorArray(in, reuse).
+	 */
+	public static FeatureVector[] readFeatureVectorArrayCompact(DataInput in, FeatureVector[] reuse) throws IOException {
+		int n = readVarInt(in) - 1;
+		if (n < 0) return null;
+		FeatureVector[] res = (reuse != null && reuse.length == n) ? reuse : new FeatureVector[n];
+		for (int i = 0; i < n; i++) {
+			if (reuse != null && i < reuse.length && reuse[i] != null && !reuse[i].isShared())
+				res[i] = reuse[i];
+			else
+				res[i] = new FeatureVector();
+			res[i].readCompact(in);
+		}
+		return res;
+	}
+	
 	public static void sortByDoubleValues(double values[], String keys[]) {
 		
 		WeightsEntry entries[] = new WeightsEntry[keys.length];
@@ -267,6 +452,50 @@ public class ArrayUtil {
 			vals[i] -= min;
 		}
 	}
+	
+	/**
+	 * Returns the k'th largest of x[0..n-1] (k = 0 is the largest), reordering x in the process.
+	 * Quickselect with median-of-three pivots: expected O(n), no sorting.
+	 */
+	public static double selectLargest(double [] x, int n, int k) {
+		
+		int lo = 0, hi = n-1;
+		while (lo < hi) {
+			
+			// median of three, moved to x[lo]
+			int mid = (lo + hi) >>> 1;
+			if (x[mid] > x[hi]) swap(x, mid, hi);
+			if (x[lo] > x[hi]) swap(x, lo, hi);
+			if (x[mid] > x[lo]) swap(x, mid, lo);
+			double pivot = x[lo];
+			
+			// partition into >= pivot | <= pivot
+			int i = lo, j = hi+1;
+			while (true) {
+				while (x[++i] > pivot) 
+					if (i == hi) break;
+				while (x[--j] < pivot)
+					if (j == lo) break;
+				if (i >= j) break;
+				swap(x, i, j);
+			}
+			swap(x, lo, j);
+			
+			if (j == k) 
+				return x[j];
+			if (j < k) 
+				lo = j+1;
+			else 
+				hi = j-1;
+		}
+		return x[k];
+	}
+	
+	private static void swap(double [] x, int i, int j) {
+		double tmp = x[i];
+		x[i] = x[j];
+		x[j] = tmp;
+	}
 
 }
 
@@ -0,0 +1,21 @@
+package cascade.util;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * A DataInput that can read arrays of primitives in one call, e.g. straight from a buffer.
+ * ArrayUtil.readInts and readDoubles use these methods when the input implements them.
+ */
+public interface BulkDataInput extends DataInput {
+
+	/**
+	 * Reads n ints into a, starting at offset off, in the same format as n calls to readInt().
+	 */
+	public void readInts(int[] a, int off, int n) throws IOException;
+
+	/**
+	 * Reads n doubles into a, starting at offset off, in the same format as n calls to readDouble().
+	 */
+	public void readDoubles(double[] a, int off, int n) throws IOException;
+}
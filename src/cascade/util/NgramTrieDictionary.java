@@ -32,15 +32,25 @@ public class NgramTrieDictionary {
 	 * @return
 	 */
 	public int addNGramId(int[] ngram){
-		if(ngram.length != depth){
-			throw new UnsupportedOperationException("Cannot get an ngramID of length " + ngram.length + " when depth = " + depth);
+		return addNGramId(ngram, ngram.length);
+	}
+	
+	/**
+	 * Gets the NGramId of the first n entries of ngram and if it does not exist create it
+	 * @param ngram
+	 * @param n
+	 * @return
+	 */
+	public int addNGramId(int[] ngram, int n){
+		if(n != depth){
+			throw new UnsupportedOperationException("Cannot get an ngramID of length " + n + " when depth = " + depth);
 		}
 		TrieNode node = nGramToNumber[ngram[0]];
 		if(depth == 1){
 			return node.number;
 		}
 		
-		for (int i = 1; i < ngram.length-1; i++) {
+		for (int i = 1; i < n-1; i++) {
 			 node = node.addChildById(ngram[i]);
 		}
 		node = node.addLeafById(ngram[depth-1]);
@@ -70,6 +80,20 @@ public class NgramTrieDictionary {
 		return node.number;
 	}
 	
+	/**
+	 * Gets the i'th entry of an ngram without creating the ngram array
+	 * @param number
+	 * @param i
+	 * @return
+	 */
+	public int getTag(int number, int i){
+		TrieNode node = numberToNGram.get(number);
+		for (int j = depth-1; j > i; j--) {
+			node = node.parent;
+		}
+		return node.tagId;
+	}
+	
 	public int[] getNgram(int number){
 		int[] results = new int[depth];
 		TrieNode node = numberToNGram.get(number);
@@ -6,7 +6,9 @@ import java.util.List;
 
 import cascade.io.Corpus;
 import cascade.io.ObjectReader;
+import cascade.lattice.Lattice;
 import cascade.model.CascadeModel;
+import cascade.model.NOrderPOS;
 import cascade.programs.Options;
 import fig.FigLoader;
 
@@ -82,6 +84,7 @@ public class OptionsParser {
 		}
 		
 		Corpus.options = options;		
+		Lattice.debug = options.debugLattices;
 		corpus.init();
 
 		System.out.println("Training models: " + Arrays.toString(trainModel));
@@ -110,6 +113,8 @@ public class OptionsParser {
 				models[i].generateLatticesOnly = mFromFile.generateLatticesOnly;
 				models[i].trainingAlphas = mFromFile.trainingAlphas;
 				models[i].maxerr = mFromFile.maxerr;
+				if (models[i] instanceof NOrderPOS)
+					((NOrderPOS) models[i]).shareSparseIDs(options);
 			}
 		}
 		